@@ -16,11 +16,14 @@ import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import com.intellij.openapi.vcs.VcsEnvCustomizer;
+import enc4idea.commands.EncProcessWatchdog;
 
 import java.io.File;
 
 
 public class RunGitCommandAction extends AnAction {
+    private static final long GIT_STATUS_TIMEOUT_MS = 30 * 1000;
+
     static class TigGitHandler extends GitLineHandler {
         public TigGitHandler(@Nullable Project project, @NotNull File directory, @NotNull GitCommand command) {
             super(project, directory, command);
@@ -59,7 +62,9 @@ public class RunGitCommandAction extends AnAction {
             // Example Git command
             ProcessBuilder processBuilder = new ProcessBuilder("git", "status");
             processBuilder.directory(new java.io.File(project.getBasePath()));
+            processBuilder.redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectError(ProcessBuilder.Redirect.DISCARD);
             Process process = processBuilder.start();
+            EncProcessWatchdog.getInstance().watch("git status", project.getBasePath(), process, GIT_STATUS_TIMEOUT_MS, null);
             TigGitHandler gh = new TigGitHandler(project, new java.io.File(project.getBasePath()), GitCommand.STATUS);
             String output = gh.printableCommandLine();
             // Capture and display output
@@ -0,0 +1,111 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.intellij.execution.configurations.GeneralCommandLine
+import com.intellij.ide.IdeEventQueue
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils
+import com.intellij.openapi.project.DumbService
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.SystemInfo
+import com.intellij.openapi.util.registry.Registry
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Adaptive treatment of background commands, i.e. handlers explicitly marked with [EncHandler.isBackground]
+ * which don't modify the repository:
+ * - they may wait before starting while the user is typing or indexing is running, at most `enc.background.max.deferral.ms`
+ *   (0 by default, i.e. deferral is off unless enabled in the registry);
+ * - they run with low CPU priority, and idle IO priority on Linux, while the system load average
+ *   is above `enc.background.load.percent` of the number of cores.
+ */
+@Service(Service.Level.APP)
+class EncBackgroundPolicy {
+    private val myOsBean = ManagementFactory.getOperatingSystemMXBean()
+    private val myIonicePath: String? by lazy {
+        IONICE_PATHS.firstOrNull { File(it).canExecute() }
+    }
+
+    @Volatile
+    private var myLoadCheckTime = 0L
+    @Volatile
+    private var myOverloaded = false
+
+    /**
+     * @return true if the system load is high enough to lower the priority of background commands
+     */
+    fun isSystemOverloaded(): Boolean {
+        val now = System.currentTimeMillis()
+        if (now - myLoadCheckTime > LOAD_CHECK_INTERVAL_MS) {
+            val load = myOsBean.systemLoadAverage // negative if not available, e.g. on Windows
+            val threshold = myOsBean.availableProcessors * Registry.intValue("enc.background.load.percent", 100) / 100.0
+            myOverloaded = load >= 0 && load > threshold
+            myLoadCheckTime = now
+        }
+        return myOverloaded
+    }
+
+    /**
+     * Block while the user is typing or the project is being indexed, but no longer than `enc.background.max.deferral.ms`.
+     * The wait ends as soon as the activity is over and is interrupted by cancellation of the caller.
+     */
+    fun awaitQuietPeriod(project: Project?) {
+        if (ApplicationManager.getApplication().isDispatchThread || ApplicationManager.getApplication().isUnitTestMode) return
+        val maxDeferral = Registry.intValue("enc.background.max.deferral.ms", 0)
+        if (maxDeferral <= 0) return
+
+        val start = System.currentTimeMillis()
+        var deferred = false
+        while (true) {
+            val remaining = start + maxDeferral - System.currentTimeMillis()
+            val quiet = if (remaining > 0) whenQuiet(project) else null
+            if (quiet == null) break
+            deferred = true
+            ProgressIndicatorUtils.awaitWithCheckCanceled(quiet.completeOnTimeout(Unit, remaining, TimeUnit.MILLISECONDS))
+        }
+        if (deferred) {
+            LOG.debug("Background command deferred for ${System.currentTimeMillis() - start} ms")
+        }
+    }
+
+    /**
+     * @return future completed when the current foreground activity is over, or null if there is none
+     */
+    private fun whenQuiet(project: Project?): CompletableFuture<Unit>? {
+        if (project != null && !project.isDisposed && DumbService.isDumb(project)) {
+            val smart = CompletableFuture<Unit>()
+            DumbService.getInstance(project).runWhenSmart { smart.complete(Unit) }
+            return smart
+        }
+        val typingIdle = Registry.intValue("enc.background.typing.idle.ms", 1000)
+        val idleTime = IdeEventQueue.getInstance().idleTime
+        if (idleTime >= typingIdle) return null
+        // typing is over when there is no input for the idle interval; if there is, the next iteration waits again
+        return CompletableFuture<Unit>().completeOnTimeout(Unit, typingIdle - idleTime, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Prepend `ionice -c 3` to a command line, so that it gets disk time only when no one else needs it.
+     * Does nothing where `ionice` is not available.
+     */
+    fun setupIdleIoPriority(commandLine: GeneralCommandLine) {
+        if (!SystemInfo.isLinux) return
+        val ionice = myIonicePath ?: return
+        commandLine.parametersList.prependAll("-c", "3", commandLine.exePath)
+        commandLine.exePath = ionice
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(EncBackgroundPolicy::class.java)
+        private const val LOAD_CHECK_INTERVAL_MS = 1000L
+        private val IONICE_PATHS = listOf("/usr/bin/ionice", "/bin/ionice")
+
+        @JvmStatic
+        fun getInstance(): EncBackgroundPolicy = ApplicationManager.getApplication().getService(EncBackgroundPolicy::class.java)
+    }
+}
@@ -0,0 +1,256 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.intellij.execution.configurations.GeneralCommandLine
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.util.registry.Registry
+import com.intellij.util.concurrency.AppExecutorUtil
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.lang.ProcessBuilder.Redirect
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedDeque
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Keeps a few long-lived `cat-file --batch`/`--batch-check` processes per repository root,
+ * so that read-only object lookups don't pay the fork/exec cost on each call.
+ *
+ * Callers go through [EncHandler.runInBatchProcess]; a `null` result means the pool could not serve
+ * the request and the command should be executed the usual one-shot way.
+ */
+@Service(Service.Level.APP)
+class EncBatchProcessPool : Disposable {
+    enum class Mode(val option: String) {
+        BATCH_CHECK("--batch-check"),
+        BATCH("--batch")
+    }
+
+    // processes are only shared between handlers with the same options, e.g. `-c` config or `--follow-symlinks`
+    private data class Key(val executableId: String, val exePath: String, val root: String, val parameters: List<String>, val mode: Mode)
+
+    private val myIdleProcesses = ConcurrentHashMap<Key, ConcurrentLinkedDeque<BatchProcess>>()
+    private val myLiveCount = ConcurrentHashMap<Key, AtomicInteger>()
+    private val myEvictionFuture: ScheduledFuture<*> = AppExecutorUtil.getAppScheduledExecutorService()
+            .scheduleWithFixedDelay({ evictIdleProcesses() }, EVICTION_PERIOD_MS, EVICTION_PERIOD_MS, TimeUnit.MILLISECONDS)
+
+    /**
+     * Run [action] against a pooled process for the handler's root.
+     * The handler takes its execution permits for the duration of the action, like a one-shot process would.
+     *
+     * @return result of the action or null if the request should fall back to the one-shot path
+     */
+    internal fun <T> query(handler: EncHandler, mode: Mode, action: (BatchProcess) -> T): T? {
+        if (!isEnabled()) return null
+        handler.checkTrusted()
+        val key = Key(handler.executable.id, handler.executable.exePath, handler.workingDirectory.path, handler.parameters.toList(), mode)
+        handler.acquireExecutionPermit().use {
+            val process = acquire(key, handler, mode) ?: return null
+            var healthy = false
+            try {
+                val result = action(process)
+                healthy = true
+                return result
+            } catch (e: IOException) {
+                LOG.debug("Batch process failed for $key, falling back to one-shot execution", e)
+                return null
+            } finally {
+                if (healthy && process.isHealthy()) {
+                    process.lastUsed = System.currentTimeMillis()
+                    myIdleProcesses.computeIfAbsent(key) { ConcurrentLinkedDeque() }.addFirst(process)
+                } else {
+                    destroy(key, process)
+                }
+            }
+        }
+    }
+
+    private fun acquire(key: Key, handler: EncHandler, mode: Mode): BatchProcess? {
+        val idle = myIdleProcesses[key]
+        while (idle != null) {
+            val candidate = idle.pollFirst() ?: break
+            if (candidate.isHealthy()) return candidate
+            destroy(key, candidate)
+        }
+
+        val liveCount = myLiveCount.computeIfAbsent(key) { AtomicInteger() }
+        if (liveCount.incrementAndGet() > Registry.intValue("enc.batch.process.pool.size", DEFAULT_POOL_SIZE)) {
+            liveCount.decrementAndGet()
+            return null
+        }
+        try {
+            val process = BatchProcess(handler.createBatchCommandLine(mode))
+            LOG.debug("Started batch process for $key")
+            return process
+        } catch (e: Exception) {
+            liveCount.decrementAndGet()
+            LOG.info("Couldn't start batch process for $key", e)
+            return null
+        }
+    }
+
+    private fun destroy(key: Key, process: BatchProcess) {
+        process.destroy()
+        myLiveCount[key]?.decrementAndGet()
+    }
+
+    private fun evictIdleProcesses() {
+        val deadline = System.currentTimeMillis() - Registry.intValue("enc.batch.process.idle.timeout.ms", DEFAULT_IDLE_TIMEOUT_MS)
+        for ((key, idle) in myIdleProcesses) {
+            val iterator = idle.iterator()
+            while (iterator.hasNext()) {
+                val process = iterator.next()
+                if (process.lastUsed < deadline || !process.isHealthy()) {
+                    if (idle.removeFirstOccurrence(process)) {
+                        LOG.debug("Evicting idle batch process for $key")
+                        destroy(key, process)
+                    }
+                }
+            }
+        }
+    }
+
+    override fun dispose() {
+        myEvictionFuture.cancel(false)
+        for ((key, idle) in myIdleProcesses) {
+            while (true) {
+                destroy(key, idle.pollFirst() ?: break)
+            }
+        }
+        myIdleProcesses.clear()
+    }
+
+    /**
+     * A running `cat-file` batch process. Requests and responses are strictly sequential,
+     * so an instance is only ever used by one thread at a time.
+     *
+     * A response not received within `enc.batch.process.read.timeout.ms` (e.g. `cat-file` fetching a missing object
+     * of a partial clone) destroys the process, the request then fails with [IOException].
+     */
+    class BatchProcess internal constructor(commandLine: GeneralCommandLine) {
+        private val myProcess: Process = commandLine.toProcessBuilder().redirectError(Redirect.DISCARD).start()
+        private val myInput = BufferedOutputStream(myProcess.outputStream)
+        private val myOutput = BufferedInputStream(myProcess.inputStream)
+        internal var lastUsed = System.currentTimeMillis()
+
+        @Volatile
+        private var myTimedOut = false
+
+        internal fun isHealthy(): Boolean = !myTimedOut && myProcess.isAlive
+
+        /**
+         * Resolve an object name (revision, `HEAD`, `<rev>:<path>`) in `--batch-check` mode.
+         *
+         * @return the object header (`<sha> <type> <size>`), or null if the name doesn't resolve to an object,
+         * e.g. it's missing, ambiguous, or a dangling symlink with `--follow-symlinks`
+         */
+        @Throws(IOException::class)
+        fun check(objectName: String): String? {
+            return withReadDeadline {
+                writeRequest(objectName)
+                readHeader()
+            }
+        }
+
+        /**
+         * Resolve a revision to its hash in `--batch-check` mode, like `rev-parse --verify` does.
+         */
+        @Throws(IOException::class)
+        fun resolve(revision: String): String? {
+            return check(revision)?.substringBefore(' ')
+        }
+
+        /**
+         * Read object contents in `--batch` mode.
+         *
+         * @return the object contents or null if the name doesn't resolve to an object, see [check]
+         */
+        @Throws(IOException::class)
+        fun read(objectName: String): ByteArray? {
+            return withReadDeadline {
+                writeRequest(objectName)
+                val header = readHeader() ?: return@withReadDeadline null
+                val size = header.substringAfterLast(' ').toIntOrNull() ?: throw IOException("Object is too large: $header")
+                val content = myOutput.readNBytes(size)
+                if (content.size != size || myOutput.read() != '\n'.code) throw IOException("Truncated batch output for $objectName")
+                content
+            }
+        }
+
+        private fun <T> withReadDeadline(request: () -> T): T {
+            val timeoutMs = Registry.intValue("enc.batch.process.read.timeout.ms", DEFAULT_READ_TIMEOUT_MS).toLong()
+            val deadline = AppExecutorUtil.getAppScheduledExecutorService().schedule({
+                myTimedOut = true
+                myProcess.destroyForcibly()
+            }, timeoutMs, TimeUnit.MILLISECONDS)
+            try {
+                return request()
+            } catch (e: IOException) {
+                if (myTimedOut) throw IOException("Batch process didn't respond in $timeoutMs ms", e)
+                throw e
+            } finally {
+                deadline.cancel(false)
+            }
+        }
+
+        private fun writeRequest(objectName: String) {
+            if (objectName.contains('\n')) throw IOException("Object name can't contain line breaks: $objectName")
+            myInput.write(objectName.toByteArray(StandardCharsets.UTF_8))
+            myInput.write('\n'.code)
+            myInput.flush()
+        }
+
+        /**
+         * @return the header line if it describes an object, null for any other response
+         */
+        private fun readHeader(): String? {
+            val header = readLine()
+            if (OBJECT_HEADER.matches(header)) return header
+            // symlink resolution failures are followed by the unresolved path: "dangling <size>\n<path>\n"
+            SYMLINK_FAILURE.matchEntire(header)?.let { myOutput.skipNBytes(it.groupValues[1].toLong() + 1) }
+            return null
+        }
+
+        private fun readLine(): String {
+            val line = ByteArrayOutputStream(64)
+            while (true) {
+                val b = myOutput.read()
+                if (b == -1) throw IOException("Batch process terminated")
+                if (b == '\n'.code) break
+                line.write(b)
+            }
+            return line.toString(StandardCharsets.UTF_8)
+        }
+
+        internal fun destroy() {
+            try {
+                myInput.close()
+            } catch (ignore: IOException) {
+            }
+            myProcess.destroy()
+        }
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(EncBatchProcessPool::class.java)
+        private val OBJECT_HEADER = Regex("[0-9a-f]{40}(?:[0-9a-f]{24})? [a-z]+ \\d+")
+        private val SYMLINK_FAILURE = Regex("(?:dangling|loop|notdir) (\\d+)")
+        private const val DEFAULT_POOL_SIZE = 2
+        private const val DEFAULT_IDLE_TIMEOUT_MS = 60 * 1000
+        private const val DEFAULT_READ_TIMEOUT_MS = 10 * 1000
+        private const val EVICTION_PERIOD_MS = (15 * 1000).toLong()
+
+        @JvmStatic
+        fun getInstance(): EncBatchProcessPool = ApplicationManager.getApplication().getService(EncBatchProcessPool::class.java)
+
+        private fun isEnabled(): Boolean = Registry.`is`("enc.batch.process.pool", true)
+    }
+}
@@ -0,0 +1,107 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.google.common.annotations.VisibleForTesting
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils
+import com.intellij.openapi.util.registry.Registry
+import com.intellij.openapi.vcs.FilePath
+import com.intellij.util.concurrency.AppExecutorUtil
+import com.intellij.vcsUtil.VcsFileUtil
+import git4idea.commands.GitCommand
+import java.util.concurrent.CompletableFuture
+
+/**
+ * Runs a command over a large set of paths, splitting the paths into chunks that fit into [VcsFileUtil.FILE_PATH_LIMIT].
+ *
+ * Chunks of read-only commands are executed concurrently with bounded parallelism,
+ * chunks of [GitCommand.LockingPolicy.WRITE] commands are executed one after another, because they compete for the index lock.
+ */
+object EncChunkedExecutor {
+    private val LOG = Logger.getInstance(EncChunkedExecutor::class.java)
+
+    class Result(val exitCode: Int, val output: List<String>, val errorOutput: List<String>) {
+        val success: Boolean
+            get() = exitCode == 0
+    }
+
+    /**
+     * @param createHandler creates a new handler with all options already set; paths are appended to it
+     * @param execute       runs a handler and collects its output
+     * @return merged result: first non-zero exit code and the output of all chunks in the order of [paths];
+     * a successful empty result if [paths] is empty, since a command without paths would apply to the whole repository
+     */
+    fun <H : EncHandler> run(paths: Collection<FilePath>, createHandler: () -> H, execute: (H) -> Result): Result {
+        if (paths.isEmpty()) return Result(0, emptyList(), emptyList())
+
+        val firstHandler = createHandler()
+        val relativePaths = paths.map { VcsFileUtil.relativePath(firstHandler.workingDirectory, it) }
+        val chunks = chunk(relativePaths, firstHandler.commandLineLength)
+        if (chunks.size == 1) {
+            firstHandler.addParameters(chunks[0])
+            return execute(firstHandler)
+        }
+
+        val handlers = chunks.mapIndexed { index, chunk ->
+            val handler = if (index == 0) firstHandler else createHandler()
+            handler.addParameters(chunk)
+            handler
+        }
+        LOG.debug("Executing ${firstHandler.command} in ${chunks.size} chunks")
+
+        val results = if (firstHandler.command.lockingPolicy() == GitCommand.LockingPolicy.WRITE) {
+            handlers.map(execute)
+        } else {
+            runConcurrently(handlers, execute)
+        }
+        return merge(results)
+    }
+
+    private fun <H : EncHandler> runConcurrently(handlers: List<H>, execute: (H) -> Result): List<Result> {
+        val indicator = ProgressManager.getInstance().progressIndicator
+        val parallelism = Registry.intValue("enc.chunked.execution.parallelism", 0)
+        val executor = AppExecutorUtil.createBoundedApplicationPoolExecutor("EncChunkedExecutor",
+                if (parallelism > 0) parallelism else DEFAULT_PARALLELISM)
+        val futures = handlers.map { handler ->
+            CompletableFuture.supplyAsync({
+                var result: Result? = null
+                ProgressManager.getInstance().executeProcessUnderProgress({ result = execute(handler) }, indicator)
+                result!!
+            }, executor)
+        }
+        try {
+            return futures.map { ProgressIndicatorUtils.awaitWithCheckCanceled(it) }
+        } finally {
+            futures.forEach { it.cancel(false) }
+        }
+    }
+
+    /**
+     * A path longer than the limit gets a chunk of its own rather than being dropped.
+     */
+    @VisibleForTesting
+    internal fun chunk(relativePaths: List<String>, baseLength: Int): List<List<String>> {
+        val chunks = ArrayList<List<String>>()
+        var current = ArrayList<String>()
+        var currentLength = baseLength
+        for (path in relativePaths) {
+            if (current.isNotEmpty() && currentLength + path.length + 1 > VcsFileUtil.FILE_PATH_LIMIT) {
+                chunks.add(current)
+                current = ArrayList()
+                currentLength = baseLength
+            }
+            current.add(path)
+            currentLength += path.length + 1
+        }
+        if (current.isNotEmpty()) chunks.add(current)
+        return chunks
+    }
+
+    private fun merge(results: List<Result>): Result {
+        val exitCode = results.firstOrNull { !it.success }?.exitCode ?: 0
+        return Result(exitCode, results.flatMap { it.output }, results.flatMap { it.errorOutput })
+    }
+
+    private val DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors().coerceIn(1, 4)
+}
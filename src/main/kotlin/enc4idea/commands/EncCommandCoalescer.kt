@@ -0,0 +1,72 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Lets concurrent identical read-only commands share one process and one result.
+ *
+ * Commands are identical if they have the same working directory, parameters and executable.
+ * The first caller executes its handler, callers arriving while it runs wait for its result and never start their own handlers.
+ */
+@Service(Service.Level.APP)
+class EncCommandCoalescer {
+    private data class Key(val workingDirectory: String, val parameters: List<String>, val executableId: String, val exePath: String)
+
+    private val myInFlight = ConcurrentHashMap<Key, CompletableFuture<Any?>>()
+
+    /**
+     * @param execute runs the handler (usually via [EncHandler.runInCurrentThread]) and returns the captured result,
+     *                which must not depend on the caller
+     */
+    fun <T> run(handler: EncHandler, execute: (EncHandler) -> T): T {
+        if (!handler.isCoalescable) return execute(handler)
+
+        val key = Key(handler.workingDirectory.path, handler.parameters, handler.executable.id, handler.executable.exePath)
+        while (true) {
+            val future = CompletableFuture<Any?>()
+            val existing = myInFlight.putIfAbsent(key, future)
+            if (existing == null) {
+                return runAsLeader(key, future, handler, execute)
+            }
+
+            val result = ProgressIndicatorUtils.awaitWithCheckCanceled(existing)
+            if (result !== LEADER_CANCELLED) {
+                LOG.debug("Reused result of in-flight ${handler.command} in ${key.workingDirectory}")
+                @Suppress("UNCHECKED_CAST")
+                return result as T
+            }
+            // the leader was cancelled, its result belongs to nobody - try again
+        }
+    }
+
+    private fun <T> runAsLeader(key: Key, future: CompletableFuture<Any?>, handler: EncHandler, execute: (EncHandler) -> T): T {
+        try {
+            val result = execute(handler)
+            future.complete(result)
+            return result
+        } catch (pce: ProcessCanceledException) {
+            future.complete(LEADER_CANCELLED)
+            throw pce
+        } catch (t: Throwable) {
+            future.completeExceptionally(t)
+            throw t
+        } finally {
+            myInFlight.remove(key, future)
+        }
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(EncCommandCoalescer::class.java)
+        private val LEADER_CANCELLED = Any()
+
+        @JvmStatic
+        fun getInstance(): EncCommandCoalescer = ApplicationManager.getApplication().getService(EncCommandCoalescer::class.java)
+    }
+}
@@ -0,0 +1,89 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import jdk.jfr.Category
+import jdk.jfr.DataAmount
+import jdk.jfr.Description
+import jdk.jfr.Event
+import jdk.jfr.EventType
+import jdk.jfr.Label
+import jdk.jfr.Name
+import jdk.jfr.StackTrace
+import jdk.jfr.Timespan
+
+/**
+ * Java Flight Recorder event covering an enc command from [EncHandler] start to termination.
+ *
+ * Handlers check [isRecorded] before creating an instance, so there is no allocation when nothing is recorded.
+ */
+@Name("enc4idea.Command")
+@Label("Enc Command")
+@Category("Enc")
+@Description("Execution of an enc process")
+@StackTrace(true)
+internal class EncCommandEvent : Event() {
+    @Label("Command")
+    @JvmField
+    var command: String? = null
+
+    @Label("Root")
+    @JvmField
+    var root: String? = null
+
+    @Label("Argument Count")
+    @JvmField
+    var argumentCount: Int = 0
+
+    @Label("Bytes Read")
+    @DataAmount(DataAmount.BYTES)
+    @JvmField
+    var bytesRead: Long = 0
+
+    @Label("Exit Code")
+    @JvmField
+    var exitCode: Int = -1
+
+    @Label("Queue Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    @JvmField
+    var queueWait: Long = 0
+
+    companion object {
+        private val TYPE = EventType.getEventType(EncCommandEvent::class.java)
+
+        /**
+         * True if a running recording has the event enabled
+         */
+        val isRecorded: Boolean
+            get() = TYPE.isEnabled
+    }
+}
+
+/**
+ * Java Flight Recorder event emitted while a thread is blocked in [EncHandler] waiting for process termination.
+ * Like [EncCommandEvent], it's only created if [isRecorded].
+ */
+@Name("enc4idea.ProcessWait")
+@Label("Enc Process Wait")
+@Category("Enc")
+@Description("Thread blocked waiting for an enc process")
+@StackTrace(true)
+internal class EncProcessWaitEvent : Event() {
+    @Label("Command")
+    @JvmField
+    var command: String? = null
+
+    @Label("Root")
+    @JvmField
+    var root: String? = null
+
+    companion object {
+        private val TYPE = EventType.getEventType(EncProcessWaitEvent::class.java)
+
+        /**
+         * True if a running recording has the event enabled
+         */
+        val isRecorded: Boolean
+            get() = TYPE.isEnabled
+    }
+}
@@ -0,0 +1,54 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.project.Project
+import enc4idea.config.EncExecutableManager
+import git4idea.config.GitExecutableListener
+import git4idea.config.GitExecutableManager
+import git4idea.config.GitVersionSpecialty
+
+/**
+ * Per-project part of the command line shared by all [EncHandler]s: the `-c` parameters which are passed to every command
+ * if the executable version allows to override config values.
+ *
+ * Computed once and dropped when the executable changes, instead of resolving the executable version for each handler.
+ */
+@Service(Service.Level.PROJECT)
+class EncCommandLinePrefix(private val project: Project) : Disposable {
+    class Prefix(val canOverrideConfig: Boolean, val parameters: List<String>)
+
+    @Volatile
+    private var myPrefix: Prefix? = null
+
+    init {
+        val listener = GitExecutableListener { myPrefix = null }
+        val connection = ApplicationManager.getApplication().messageBus.connect(this)
+        connection.subscribe(EncExecutableManager.TOPIC, listener)
+        connection.subscribe(GitExecutableManager.TOPIC, listener)
+    }
+
+    fun get(): Prefix {
+        myPrefix?.let { return it }
+
+        val canOverrideConfig = GitVersionSpecialty.CAN_OVERRIDE_GIT_CONFIG_FOR_COMMAND.existsIn(project)
+        val parameters = if (canOverrideConfig) listOf("-c", "core.quotepath=false", "-c", "log.showSignature=false") else emptyList()
+        val prefix = Prefix(canOverrideConfig, parameters)
+        // the version is not known until it has been identified, don't remember the answer until then
+        if (!GitExecutableManager.getInstance().getVersion(project).isNull) {
+            myPrefix = prefix
+        }
+        return prefix
+    }
+
+    override fun dispose() {
+        myPrefix = null
+    }
+
+    companion object {
+        @JvmStatic
+        fun getInstance(project: Project): EncCommandLinePrefix = project.getService(EncCommandLinePrefix::class.java)
+    }
+}
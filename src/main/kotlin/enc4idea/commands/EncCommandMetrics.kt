@@ -0,0 +1,158 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.google.common.annotations.VisibleForTesting
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.util.registry.Registry
+import com.intellij.openapi.vcs.ProjectLevelVcsManager
+import com.intellij.util.concurrency.AppExecutorUtil
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Latency distribution of enc commands, per command, per repository root and per executable.
+ *
+ * Every handler records how long it took to spawn the process, to receive the first output byte and to finish.
+ * Repository roots are the VCS roots of the working directories, commands outside of a project root are not recorded per root.
+ * At most [MAX_KEYS] distinct keys are kept, later keys are dropped until [reset].
+ * The registry can be queried with [getSummaries] and is periodically dumped to the log
+ * if `enc.metrics.dump.interval.minutes` is positive.
+ */
+@Service(Service.Level.APP)
+class EncCommandMetrics : Disposable {
+    enum class Phase { SPAWN, FIRST_BYTE, TOTAL }
+
+    private val myHistograms = ConcurrentHashMap<String, Array<Histogram>>()
+    private val myDumpFuture: ScheduledFuture<*>?
+
+    init {
+        val interval = Registry.intValue("enc.metrics.dump.interval.minutes", 0).toLong()
+        myDumpFuture = if (interval > 0) {
+            AppExecutorUtil.getAppScheduledExecutorService().scheduleWithFixedDelay({ dump() }, interval, interval, TimeUnit.MINUTES)
+        } else null
+    }
+
+    /**
+     * @param firstByteNanos time to the first output byte, or a negative value if there was no output
+     */
+    internal fun record(handler: EncHandler, spawnNanos: Long, firstByteNanos: Long, totalNanos: Long) {
+        val root = findRepositoryRoot(handler)
+        for (key in listOfNotNull("command:" + handler.command.name(),
+                root?.let { "root:$it" },
+                "executable:" + handler.executable.id)) {
+            val histograms = myHistograms[key]
+                    ?: if (myHistograms.size < MAX_KEYS) myHistograms.computeIfAbsent(key) { Array(Phase.values().size) { Histogram() } }
+                    else continue
+            if (spawnNanos >= 0) histograms[Phase.SPAWN.ordinal].record(spawnNanos)
+            if (firstByteNanos >= 0) histograms[Phase.FIRST_BYTE.ordinal].record(firstByteNanos)
+            histograms[Phase.TOTAL.ordinal].record(totalNanos)
+        }
+    }
+
+    private fun findRepositoryRoot(handler: EncHandler): String? {
+        val project = handler.project()
+        if (project == null || project.isDefault || project.isDisposed) return null
+        val directory = EncRootCache.getInstance(project).findRoot(handler.workingDirectory) ?: return null
+        return ProjectLevelVcsManager.getInstance(project).getVcsRootFor(directory)?.path
+    }
+
+    /**
+     * @return summaries keyed by `command:<name>`, `root:<path>` or `executable:<id>`
+     */
+    fun getSummaries(): Map<String, Map<Phase, Summary>> {
+        return myHistograms.mapValues { (_, histograms) -> Phase.values().associateWith { histograms[it.ordinal].summary() } }
+    }
+
+    fun reset() {
+        myHistograms.clear()
+    }
+
+    fun dump() {
+        val summaries = getSummaries()
+        if (summaries.isEmpty()) return
+        val message = StringBuilder("enc command latencies:")
+        for ((key, phases) in summaries.toSortedMap()) {
+            message.append("\n  ").append(key)
+            for ((phase, summary) in phases) {
+                if (summary.count > 0) message.append("\n    ").append(phase).append(": ").append(summary)
+            }
+        }
+        LOG.info(message.toString())
+    }
+
+    override fun dispose() {
+        myDumpFuture?.cancel(false)
+    }
+
+    class Summary(val count: Long, val p50Ms: Double, val p90Ms: Double, val p99Ms: Double, val maxMs: Double) {
+        override fun toString(): String = String.format("count=%d p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms", count, p50Ms, p90Ms, p99Ms, maxMs)
+    }
+
+    /**
+     * Lock-free log-linear histogram of microsecond values: each power of two is split into [SUB_BUCKETS] buckets,
+     * so percentiles are reported with the precision of about 25%.
+     */
+    @VisibleForTesting
+    internal class Histogram {
+        private val myBuckets = AtomicLongArray(BUCKET_COUNT)
+        private val myMaxMicros = AtomicLong()
+
+        fun record(nanos: Long) {
+            val micros = TimeUnit.NANOSECONDS.toMicros(nanos).coerceAtLeast(0)
+            myBuckets.incrementAndGet(bucketIndex(micros))
+            myMaxMicros.accumulateAndGet(micros, Math::max)
+        }
+
+        fun summary(): Summary {
+            val counts = LongArray(BUCKET_COUNT) { myBuckets.get(it) }
+            val total = counts.sum()
+            return Summary(total, percentile(counts, total, 0.5), percentile(counts, total, 0.9), percentile(counts, total, 0.99),
+                    myMaxMicros.get() / 1000.0)
+        }
+
+        private fun percentile(counts: LongArray, total: Long, fraction: Double): Double {
+            if (total == 0L) return 0.0
+            val rank = Math.ceil(total * fraction).toLong()
+            var seen = 0L
+            for (i in counts.indices) {
+                seen += counts[i]
+                if (seen >= rank) return bucketUpperBound(i) / 1000.0
+            }
+            return myMaxMicros.get() / 1000.0
+        }
+
+        companion object {
+            private const val SUB_BUCKET_BITS = 2
+            private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+            internal const val BUCKET_COUNT = 64 * SUB_BUCKETS
+
+            internal fun bucketIndex(micros: Long): Int {
+                if (micros < SUB_BUCKETS) return micros.toInt()
+                val magnitude = 63 - java.lang.Long.numberOfLeadingZeros(micros)
+                val subBucket = (micros ushr (magnitude - SUB_BUCKET_BITS)).toInt() and (SUB_BUCKETS - 1)
+                return ((magnitude - SUB_BUCKET_BITS + 1) shl SUB_BUCKET_BITS) + subBucket
+            }
+
+            internal fun bucketUpperBound(index: Int): Long {
+                if (index < SUB_BUCKETS) return index.toLong()
+                val magnitude = (index shr SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1
+                val subBucket = (index and (SUB_BUCKETS - 1)).toLong()
+                return ((SUB_BUCKETS + subBucket + 1) shl (magnitude - SUB_BUCKET_BITS)) - 1
+            }
+        }
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(EncCommandMetrics::class.java)
+        private const val MAX_KEYS = 1000
+
+        @JvmStatic
+        fun getInstance(): EncCommandMetrics = ApplicationManager.getApplication().getService(EncCommandMetrics::class.java)
+    }
+}
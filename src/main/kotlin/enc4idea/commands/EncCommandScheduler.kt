@@ -0,0 +1,170 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.google.common.annotations.VisibleForTesting
+import com.intellij.openapi.application.AccessToken
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.io.FileUtil
+import com.intellij.openapi.util.registry.Registry
+import com.intellij.openapi.vcs.ProjectLevelVcsManager
+import git4idea.commands.GitCommand
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Coordinates enc processes working on the same repository root.
+ *
+ * Read-only commands run concurrently up to `enc.scheduler.max.concurrent.reads`,
+ * [GitCommand.LockingPolicy.WRITE] commands run alone.
+ * Waiting handlers are admitted in order, user-initiated ones before background ones.
+ *
+ * Handlers are grouped by the VCS root of their working directory, or by the working directory itself outside of VCS roots.
+ * A command started under the permit of another one, e.g. from its input processor, is admitted immediately,
+ * so that a read started by a running write doesn't wait for it forever; starting a write under a read fails instead.
+ * The permit is passed explicitly, so a permit doesn't depend on the thread which took or releases it.
+ */
+@Service(Service.Level.PROJECT)
+class EncCommandScheduler(private val project: Project) {
+    private val myGates = ConcurrentHashMap<String, RootGate>()
+    private val mySequence = AtomicLong()
+
+    /**
+     * Wait until the handler is allowed to run. The returned token must be finished when the process terminates.
+     *
+     * @param holder permit returned by this method to the command which starts the handler while it runs, if any
+     */
+    fun acquire(handler: EncHandler, holder: AccessToken?): AccessToken {
+        val root = findRepositoryRoot(handler)
+        val gate = enter(root)
+        try {
+            val ticket = Ticket(handler.command.lockingPolicy() == GitCommand.LockingPolicy.WRITE,
+                    handler.isUserInitiated,
+                    mySequence.incrementAndGet())
+            gate.await(ticket, (holder as? Permit)?.takeIf { it.gate === gate }?.ticket)
+            return Permit(root, gate, ticket)
+        } catch (t: Throwable) {
+            leave(root)
+            throw t
+        }
+    }
+
+    /**
+     * Gates are created on demand and dropped when no command holds or waits for a permit in their root.
+     */
+    private fun enter(root: String): RootGate {
+        return myGates.compute(root) { _, gate -> (gate ?: RootGate(root)).also { it.users++ } }!!
+    }
+
+    private fun leave(root: String) {
+        myGates.computeIfPresent(root) { _, gate -> if (--gate.users == 0) null else gate }
+    }
+
+    private fun findRepositoryRoot(handler: EncHandler): String {
+        val directory = EncRootCache.getInstance(project).findRoot(handler.workingDirectory)
+        val vcsRoot = if (directory != null) ProjectLevelVcsManager.getInstance(project).getVcsRootFor(directory) else null
+        return vcsRoot?.path ?: FileUtil.toSystemIndependentName(handler.workingDirectory.path)
+    }
+
+    private inner class Permit(private val myRoot: String, val gate: RootGate, val ticket: Ticket) : AccessToken() {
+        override fun finish() {
+            try {
+                gate.release(ticket)
+            } finally {
+                leave(myRoot)
+            }
+        }
+    }
+
+    @VisibleForTesting
+    internal class Ticket(val isWrite: Boolean, val isUserInitiated: Boolean, val sequence: Long) : Comparable<Ticket> {
+        val admitted = CompletableFuture<Unit>()
+        var holder: Ticket? = null // set if admitted under the permit of another ticket
+        var isReleased = false
+
+        val isNested: Boolean
+            get() = holder != null
+
+        override fun compareTo(other: Ticket): Int {
+            if (isUserInitiated != other.isUserInitiated) return if (isUserInitiated) -1 else 1
+            return sequence.compareTo(other.sequence)
+        }
+    }
+
+    @VisibleForTesting
+    internal class RootGate(private val myRoot: String) {
+        private val myLock = ReentrantLock()
+        private val myWaiting = sortedSetOf<Ticket>()
+        private var myActiveReads = 0
+        private var myWriteActive = false
+        var users = 0 // guarded by the map of gates
+
+        @VisibleForTesting
+        val waitingCount: Int
+            get() = myLock.withLock { myWaiting.size }
+
+        /**
+         * Wait until the ticket is admitted. Waiting tickets are woken up by the release which admits them.
+         *
+         * @param holder ticket of a running command which starts this one, its permit is shared instead of waiting for a new one
+         */
+        fun await(ticket: Ticket, holder: Ticket?) {
+            myLock.withLock {
+                val outer = holder?.holder ?: holder
+                if (outer != null && outer.admitted.isDone && !outer.isReleased) {
+                    if (ticket.isWrite && !outer.isWrite) {
+                        throw IllegalStateException("Can't start a write command in $myRoot under the permit of a read command there")
+                    }
+                    ticket.holder = outer
+                    return
+                }
+                myWaiting.add(ticket)
+                admitWaiting()
+            }
+            try {
+                ProgressIndicatorUtils.awaitWithCheckCanceled(ticket.admitted)
+            } catch (t: Throwable) {
+                myLock.withLock {
+                    if (myWaiting.remove(ticket)) admitWaiting() else release(ticket) // it may have been admitted meanwhile
+                }
+                throw t
+            }
+        }
+
+        /**
+         * Admit waiting tickets in priority order, so a ticket can't overtake an earlier one that is still blocked.
+         */
+        private fun admitWaiting() {
+            val maxReads = Registry.intValue("enc.scheduler.max.concurrent.reads", DEFAULT_MAX_CONCURRENT_READS)
+            val iterator = myWaiting.iterator()
+            while (iterator.hasNext()) {
+                val waiting = iterator.next()
+                val admissible = if (waiting.isWrite) !myWriteActive && myActiveReads == 0 else !myWriteActive && myActiveReads < maxReads
+                if (!admissible) return
+                iterator.remove()
+                if (waiting.isWrite) myWriteActive = true else myActiveReads++
+                waiting.admitted.complete(Unit)
+            }
+        }
+
+        fun release(ticket: Ticket) {
+            myLock.withLock {
+                if (ticket.isNested || ticket.isReleased) return
+                ticket.isReleased = true
+                if (ticket.isWrite) myWriteActive = false else myActiveReads--
+                admitWaiting()
+            }
+        }
+    }
+
+    companion object {
+        private const val DEFAULT_MAX_CONCURRENT_READS = 4
+
+        @JvmStatic
+        fun getInstance(project: Project): EncCommandScheduler = project.getService(EncCommandScheduler::class.java)
+    }
+}
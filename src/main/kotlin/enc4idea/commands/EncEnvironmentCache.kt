@@ -0,0 +1,74 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.util.registry.RegistryManager
+import com.intellij.openapi.util.registry.RegistryValue
+import com.intellij.openapi.util.registry.RegistryValueListener
+import com.intellij.util.EnvironmentUtil
+import enc4idea.config.EncExecutableManager
+import git4idea.config.GitExecutable
+import git4idea.config.GitExecutableListener
+import git4idea.config.GitExecutableManager
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Precomputed base environment for enc processes: the IDE environment (for local executables) and the locale variables.
+ *
+ * The snapshot is built once per executable and dropped when the executable changes
+ * or when a registry key the locale is taken from changes (`<prefix>.executable.locale`, WSL locale detection).
+ * The IDE environment itself is read once per session by [EnvironmentUtil], so it can't change underneath.
+ * [com.intellij.openapi.vcs.VcsEnvCustomizer]s are not part of it, because they depend on the handler's executable context.
+ */
+@Service(Service.Level.APP)
+class EncEnvironmentCache : Disposable {
+    private data class Key(val id: String, val exePath: String, val isLocal: Boolean)
+
+    private val myEnvironments = ConcurrentHashMap<Key, Map<String, String>>()
+
+    init {
+        val listener = GitExecutableListener { dropCache() }
+        val connection = ApplicationManager.getApplication().messageBus.connect(this)
+        connection.subscribe(EncExecutableManager.TOPIC, listener)
+        connection.subscribe(GitExecutableManager.TOPIC, listener)
+        connection.subscribe(RegistryManager.TOPIC, object : RegistryValueListener {
+            override fun afterValueChanged(value: RegistryValue) {
+                if (isLocaleKey(value.key)) dropCache()
+            }
+        })
+    }
+
+    /**
+     * @return immutable environment to start the handler's environment from
+     */
+    fun getBaseEnvironment(executable: GitExecutable): Map<String, String> {
+        return myEnvironments.computeIfAbsent(Key(executable.id, executable.exePath, executable.isLocal)) {
+            val environment = HashMap<String, String>()
+            if (executable.isLocal) {
+                environment.putAll(EnvironmentUtil.getEnvironmentMap())
+            }
+            environment.putAll(executable.getLocaleEnv())
+            Collections.unmodifiableMap(environment)
+        }
+    }
+
+    fun dropCache() {
+        myEnvironments.clear()
+    }
+
+    override fun dispose() {
+        dropCache()
+    }
+
+    companion object {
+        private const val WSL_LOCALE_DETECTION_KEY = "git.wsl.exe.executable.detect.lang.by.env"
+
+        private fun isLocaleKey(key: String): Boolean = key.endsWith(".executable.locale") || key == WSL_LOCALE_DETECTION_KEY
+
+        @JvmStatic
+        fun getInstance(): EncEnvironmentCache = ApplicationManager.getApplication().getService(EncEnvironmentCache::class.java)
+    }
+}
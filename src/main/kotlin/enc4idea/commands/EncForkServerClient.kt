@@ -0,0 +1,385 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.intellij.execution.configurations.GeneralCommandLine
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.application.PathManager
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.util.SystemInfo
+import com.intellij.openapi.util.registry.Registry
+import com.intellij.util.concurrency.AppExecutorUtil
+import enc4idea.commands.EncForkServerMain.EncForkServerProtocol
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.InterruptedIOException
+import java.io.OutputStream
+import java.lang.ProcessBuilder.Redirect
+import java.net.UnixDomainSocketAddress
+import java.nio.channels.SocketChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.PosixFilePermissions
+import java.security.MessageDigest
+import java.security.SecureRandom
+import java.util.ArrayDeque
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.locks.ReentrantLock
+import java.util.stream.Stream
+import kotlin.concurrent.withLock
+
+/**
+ * Starts enc processes through the fork server ([EncForkServerMain]) instead of forking the IDE process.
+ *
+ * The server is a small JVM started on first use and connected over a Unix domain socket.
+ * The socket is created in a directory accessible only by the current user, and the server proves its identity
+ * on every connection by sending back a random token passed to it over stdin, before the client sends the environment.
+ * Enabled by the `enc.fork.server` registry key on Unix; any failure makes [start] return `null`,
+ * and the caller falls back to starting the process directly.
+ */
+@Service(Service.Level.APP)
+class EncForkServerClient : Disposable {
+    private val myLock = Any()
+    private var myServer: Process? = null
+    private var mySocketPath: Path? = null
+    private var mySocketDirectory: Path? = null
+    private var myToken: String? = null
+    @Volatile
+    private var myBroken = false
+
+    /**
+     * @return a process started by the fork server, or null if the server is disabled or not available
+     */
+    fun start(commandLine: GeneralCommandLine): Process? {
+        if (!isEnabled() || myBroken) return null
+        val socketPath = ensureServer() ?: return null
+        val token = myToken ?: return null
+        var channel: SocketChannel? = null
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath))
+            val input = DataInputStream(EncForkServerProtocol.inputStream(channel))
+            val peerToken = EncForkServerProtocol.readString(input)
+            if (!MessageDigest.isEqual(peerToken.toByteArray(), token.toByteArray())) {
+                throw IOException("Fork server at $socketPath failed the handshake")
+            }
+            val output = DataOutputStream(EncForkServerProtocol.outputStream(channel))
+            writeRequest(output, commandLine)
+            return when (input.readByte()) {
+                EncForkServerProtocol.STARTED -> RemoteProcess(channel, input, output, input.readLong())
+                EncForkServerProtocol.START_FAILED -> throw IOException(EncForkServerProtocol.readString(input))
+                else -> throw IOException("Unexpected fork server response")
+            }
+        } catch (e: IOException) {
+            try {
+                channel?.close()
+            } catch (ignore: IOException) {
+            }
+            LOG.info("Fork server couldn't start ${commandLine.exePath}, falling back to direct start", e)
+            return null
+        }
+    }
+
+    private fun writeRequest(output: DataOutputStream, commandLine: GeneralCommandLine) {
+        EncForkServerProtocol.writeString(output, commandLine.workDirectory?.path ?: "")
+        val command = commandLine.getCommandLineList(null)
+        output.writeInt(command.size)
+        command.forEach { EncForkServerProtocol.writeString(output, it) }
+        val environment = commandLine.effectiveEnvironment
+        output.writeInt(environment.size)
+        for ((name, value) in environment) {
+            EncForkServerProtocol.writeString(output, name)
+            EncForkServerProtocol.writeString(output, value)
+        }
+        output.flush()
+    }
+
+    private fun ensureServer(): Path? {
+        synchronized(myLock) {
+            val server = myServer
+            if (server != null && server.isAlive) return mySocketPath
+            try {
+                val socketDirectory = Files.createTempDirectory("enc-fork",
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")))
+                mySocketDirectory = socketDirectory
+                val socketPath = socketDirectory.resolve("server.sock")
+                val token = generateToken()
+                val javaPath = Path.of(System.getProperty("java.home"), "bin", "java").toString()
+                val classPath = PathManager.getJarPathForClass(EncForkServerMain::class.java) ?: throw IOException("Plugin classpath not found")
+                val process = ProcessBuilder(javaPath, "-Xmx16m", "-Xss256k", "-XX:+UseSerialGC", "-XX:TieredStopAtLevel=1",
+                        "-cp", classPath, EncForkServerMain::class.java.name, socketPath.toString(), ProcessHandle.current().pid().toString())
+                        .redirectError(Redirect.DISCARD)
+                        .start()
+                process.outputStream.use { it.write((token + "\n").toByteArray()) }
+                awaitReady(process)
+                myServer = process
+                mySocketPath = socketPath
+                myToken = token
+                LOG.info("Fork server started, pid ${process.pid()}")
+                return socketPath
+            } catch (e: Exception) {
+                LOG.warn("Fork server is not available, processes will be started directly", e)
+                myBroken = true
+                return null
+            }
+        }
+    }
+
+    /**
+     * Waits for the server to report that it listens on the socket; the server is destroyed if it doesn't in time
+     */
+    private fun awaitReady(process: Process) {
+        val deadline = AppExecutorUtil.getAppScheduledExecutorService().schedule({
+            process.destroyForcibly()
+        }, SERVER_START_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+        try {
+            process.inputStream.use {
+                if (it.read() != EncForkServerProtocol.READY.toInt()) throw IOException("Fork server didn't start")
+            }
+        } finally {
+            deadline.cancel(false)
+        }
+    }
+
+    override fun dispose() {
+        synchronized(myLock) {
+            myServer?.destroy()
+            myServer = null
+            mySocketPath?.let { Files.deleteIfExists(it) }
+            mySocketPath = null
+            mySocketDirectory?.let { Files.deleteIfExists(it) }
+            mySocketDirectory = null
+            myToken = null
+        }
+    }
+
+    /**
+     * A process running in the fork server. Stdout and stderr are demultiplexed from the connection into buffers
+     * by a reader started on [EncStreamPumps].
+     *
+     * Only stdout is bounded: a full stdout buffer stops reading from the connection, which throttles the server.
+     * Stderr is buffered without a limit, so that a consumer waiting for stdout never blocks the connection on unread stderr
+     * (separate pipes of a local process don't block each other either). After [destroy] the output is discarded,
+     * so the reader always gets to the exit frame even if nobody reads the streams anymore.
+     */
+    private class RemoteProcess(private val myChannel: SocketChannel,
+                                private val myInput: DataInputStream,
+                                private val myOutput: DataOutputStream,
+                                private val myPid: Long) : Process() {
+        private val myExit = CompletableFuture<Int>()
+        private val myStdout = StreamBuffer(STDOUT_BUFFER_SIZE)
+        private val myStderr = StreamBuffer(Int.MAX_VALUE)
+        private val myStdin = object : OutputStream() {
+            override fun write(b: Int) {
+                write(byteArrayOf(b.toByte()), 0, 1)
+            }
+
+            override fun write(b: ByteArray, off: Int, len: Int) {
+                synchronized(myOutput) {
+                    myOutput.writeByte(EncForkServerProtocol.STDIN.toInt())
+                    myOutput.writeInt(len)
+                    myOutput.write(b, off, len)
+                    myOutput.flush()
+                }
+            }
+
+            override fun close() {
+                sendControl(EncForkServerProtocol.STDIN_EOF)
+            }
+        }
+
+        init {
+            EncStreamPumps.start("enc fork server client $myPid", Runnable { demultiplex() })
+        }
+
+        private fun demultiplex() {
+            var buffer = ByteArray(8192)
+            var exitCode = -1
+            try {
+                while (true) {
+                    val type = myInput.readByte()
+                    if (type == EncForkServerProtocol.EXIT) {
+                        exitCode = myInput.readInt()
+                        break
+                    }
+                    val length = myInput.readInt()
+                    if (length > buffer.size) buffer = ByteArray(length)
+                    myInput.readFully(buffer, 0, length)
+                    when (type) {
+                        EncForkServerProtocol.STDOUT -> myStdout.write(buffer, 0, length)
+                        EncForkServerProtocol.STDERR -> myStderr.write(buffer, 0, length)
+                    }
+                }
+            } catch (e: IOException) {
+                LOG.debug("Fork server connection of $myPid is closed", e)
+            } finally {
+                myStdout.finish()
+                myStderr.finish()
+                try {
+                    myChannel.close()
+                } catch (ignore: IOException) {
+                }
+                myExit.complete(exitCode)
+            }
+        }
+
+        override fun getOutputStream(): OutputStream = myStdin
+        override fun getInputStream(): InputStream = myStdout
+        override fun getErrorStream(): InputStream = myStderr
+
+        override fun waitFor(): Int = myExit.get()
+
+        override fun waitFor(timeout: Long, unit: TimeUnit): Boolean {
+            try {
+                myExit.get(timeout, unit)
+                return true
+            } catch (e: TimeoutException) {
+                return false
+            }
+        }
+
+        override fun onExit(): CompletableFuture<Process> = myExit.thenApply { this }
+
+        override fun exitValue(): Int {
+            if (!myExit.isDone) throw IllegalThreadStateException("Process $myPid has not exited")
+            return myExit.get()
+        }
+
+        override fun isAlive(): Boolean = !myExit.isDone
+
+        override fun pid(): Long = myPid
+
+        override fun destroy() {
+            myStdout.discard()
+            myStderr.discard()
+            sendControl(EncForkServerProtocol.KILL)
+        }
+
+        override fun destroyForcibly(): Process {
+            destroy()
+            return this
+        }
+
+        // the server destroys the whole tree on KILL, descendants are not visible from here
+        override fun descendants(): Stream<ProcessHandle> = Stream.empty()
+
+        private fun sendControl(type: Byte) {
+            try {
+                synchronized(myOutput) {
+                    myOutput.writeByte(type.toInt())
+                    myOutput.flush()
+                }
+            } catch (e: IOException) {
+                LOG.debug("Fork server connection of $myPid is closed", e)
+            }
+        }
+    }
+
+    /**
+     * Output of a [RemoteProcess] stream between the connection reader and the consumer.
+     * [write] waits while [myCapacity] bytes are unread, unless the consumer has closed the stream or the output is discarded.
+     */
+    private class StreamBuffer(private val myCapacity: Int) : InputStream() {
+        private val myLock = ReentrantLock()
+        private val myChanged = myLock.newCondition()
+        private val myChunks = ArrayDeque<ByteArray>()
+        private var myOffset = 0
+        private var mySize = 0
+        private var myFinished = false
+        private var myDiscarded = false
+
+        fun write(b: ByteArray, off: Int, len: Int) {
+            myLock.withLock {
+                while (!myDiscarded && mySize > 0 && mySize + len > myCapacity) {
+                    try {
+                        myChanged.await()
+                    } catch (e: InterruptedException) {
+                        throw InterruptedIOException()
+                    }
+                }
+                if (myDiscarded) return
+                myChunks.add(b.copyOfRange(off, off + len))
+                mySize += len
+                myChanged.signalAll()
+            }
+        }
+
+        fun finish() {
+            myLock.withLock {
+                myFinished = true
+                myChanged.signalAll()
+            }
+        }
+
+        fun discard() {
+            myLock.withLock {
+                myDiscarded = true
+                myChunks.clear()
+                myOffset = 0
+                mySize = 0
+                myChanged.signalAll()
+            }
+        }
+
+        override fun read(): Int {
+            val b = ByteArray(1)
+            return if (read(b, 0, 1) < 0) -1 else b[0].toInt() and 0xFF
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (len == 0) return 0
+            return myLock.withLock {
+                while (mySize == 0) {
+                    if (myFinished || myDiscarded) return -1
+                    try {
+                        myChanged.await()
+                    } catch (e: InterruptedException) {
+                        throw InterruptedIOException()
+                    }
+                }
+                var read = 0
+                while (read < len && myChunks.isNotEmpty()) {
+                    val chunk = myChunks.first()
+                    val count = minOf(len - read, chunk.size - myOffset)
+                    System.arraycopy(chunk, myOffset, b, off + read, count)
+                    read += count
+                    myOffset += count
+                    if (myOffset == chunk.size) {
+                        myChunks.removeFirst()
+                        myOffset = 0
+                    }
+                }
+                mySize -= read
+                myChanged.signalAll()
+                read
+            }
+        }
+
+        override fun available(): Int = myLock.withLock { mySize }
+
+        override fun close() {
+            discard()
+        }
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(EncForkServerClient::class.java)
+        private const val SERVER_START_TIMEOUT_MS = 5000L
+        private const val STDOUT_BUFFER_SIZE = 64 * 1024
+
+        @JvmStatic
+        fun getInstance(): EncForkServerClient = ApplicationManager.getApplication().getService(EncForkServerClient::class.java)
+
+        private fun generateToken(): String {
+            val bytes = ByteArray(32)
+            SecureRandom().nextBytes(bytes)
+            return bytes.joinToString("") { "%02x".format(it) }
+        }
+
+        private fun isEnabled(): Boolean = SystemInfo.isUnix && Registry.`is`("enc.fork.server", false)
+    }
+}
@@ -0,0 +1,265 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Entry point of the fork server: a small helper JVM which spawns enc processes on behalf of the IDE,
+ * so that the IDE process with its large heap doesn't have to fork itself for every command.
+ * <p>
+ * Runs standalone with only the JDK on the classpath. Each client connection carries one process:
+ * a request, then stdin frames from the client and stdout/stderr/exit frames from the server, see {@link EncForkServerProtocol}.
+ * The server exits when the parent process terminates.
+ * <p>
+ * The first line of the standard input is a secret token which the server sends at the beginning of every connection,
+ * so that the client can make sure it talks to the server it has started before sending anything.
+ * Once the socket is bound, the server writes {@link EncForkServerProtocol#READY} to its standard output.
+ * <p>
+ * Usage: {@code EncForkServerMain <socket path> <parent pid>}
+ */
+public final class EncForkServerMain {
+  private EncForkServerMain() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    Path socketPath = Path.of(args[0]);
+    long parentPid = Long.parseLong(args[1]);
+    String token = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)).readLine();
+    if (token == null || token.isEmpty()) {
+      System.exit(1);
+    }
+    ProcessHandle.of(parentPid).ifPresentOrElse(parent -> parent.onExit().thenRun(() -> exit(socketPath)), () -> exit(socketPath));
+
+    Files.deleteIfExists(socketPath);
+    try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+      server.bind(UnixDomainSocketAddress.of(socketPath));
+      System.out.write(EncForkServerProtocol.READY);
+      System.out.flush();
+      while (true) {
+        SocketChannel connection = server.accept();
+        startDaemon("enc fork server connection", () -> serve(connection, token));
+      }
+    }
+  }
+
+  private static void exit(Path socketPath) {
+    try {
+      Files.deleteIfExists(socketPath);
+    }
+    catch (IOException ignore) {
+    }
+    System.exit(0);
+  }
+
+  private static void serve(SocketChannel connection, String token) {
+    try (connection) {
+      DataInputStream in = new DataInputStream(EncForkServerProtocol.inputStream(connection));
+      DataOutputStream out = new DataOutputStream(EncForkServerProtocol.outputStream(connection));
+      EncForkServerProtocol.writeString(out, token);
+      out.flush();
+
+      Process process;
+      try {
+        process = start(in);
+      }
+      catch (IOException e) {
+        synchronized (out) {
+          out.writeByte(EncForkServerProtocol.START_FAILED);
+          EncForkServerProtocol.writeString(out, String.valueOf(e.getMessage()));
+          out.flush();
+        }
+        return;
+      }
+      synchronized (out) {
+        out.writeByte(EncForkServerProtocol.STARTED);
+        out.writeLong(process.pid());
+        out.flush();
+      }
+
+      Thread stdout = startDaemon("enc fork server stdout", () -> relay(process.getInputStream(), out, EncForkServerProtocol.STDOUT));
+      Thread stderr = startDaemon("enc fork server stderr", () -> relay(process.getErrorStream(), out, EncForkServerProtocol.STDERR));
+      startDaemon("enc fork server stdin", () -> receive(in, process));
+
+      int exitCode = process.waitFor();
+      stdout.join();
+      stderr.join();
+      synchronized (out) {
+        out.writeByte(EncForkServerProtocol.EXIT);
+        out.writeInt(exitCode);
+        out.flush();
+      }
+    }
+    catch (IOException | InterruptedException ignore) {
+      // the client has gone, nothing to report to
+    }
+  }
+
+  private static Process start(DataInputStream in) throws IOException {
+    String workDirectory = EncForkServerProtocol.readString(in);
+    int argumentCount = in.readInt();
+    List<String> command = new ArrayList<>(argumentCount);
+    for (int i = 0; i < argumentCount; i++) {
+      command.add(EncForkServerProtocol.readString(in));
+    }
+    ProcessBuilder builder = new ProcessBuilder(command);
+    builder.directory(workDirectory.isEmpty() ? null : Path.of(workDirectory).toFile());
+    Map<String, String> environment = builder.environment();
+    environment.clear();
+    int environmentSize = in.readInt();
+    for (int i = 0; i < environmentSize; i++) {
+      environment.put(EncForkServerProtocol.readString(in), EncForkServerProtocol.readString(in));
+    }
+    return builder.start();
+  }
+
+  private static void relay(InputStream stream, DataOutputStream out, byte type) {
+    byte[] buffer = new byte[8192];
+    try (stream) {
+      int read;
+      while ((read = stream.read(buffer)) >= 0) {
+        if (read == 0) continue;
+        synchronized (out) {
+          out.writeByte(type);
+          out.writeInt(read);
+          out.write(buffer, 0, read);
+          out.flush();
+        }
+      }
+    }
+    catch (IOException ignore) {
+    }
+  }
+
+  private static void receive(DataInputStream in, Process process) {
+    OutputStream stdin = process.getOutputStream();
+    try {
+      while (true) {
+        byte type = in.readByte();
+        if (type == EncForkServerProtocol.STDIN) {
+          byte[] data = new byte[in.readInt()];
+          in.readFully(data);
+          stdin.write(data);
+          stdin.flush();
+        }
+        else if (type == EncForkServerProtocol.STDIN_EOF) {
+          stdin.close();
+        }
+        else if (type == EncForkServerProtocol.KILL) {
+          process.descendants().forEach(ProcessHandle::destroyForcibly);
+          process.destroyForcibly();
+        }
+      }
+    }
+    catch (IOException e) {
+      // connection closed by the client: the process is not needed anymore
+      if (process.isAlive()) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+      }
+    }
+  }
+
+  private static Thread startDaemon(String name, Runnable task) {
+    Thread thread = new Thread(task, name);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * Frame types and string encoding shared by the server and {@link EncForkServerClient}.
+   */
+  static final class EncForkServerProtocol {
+    // server -> client, over the standard output of the server once it listens
+    static final byte READY = 0;
+    // server -> client
+    static final byte STARTED = 1;
+    static final byte START_FAILED = 2;
+    static final byte STDOUT = 3;
+    static final byte STDERR = 4;
+    static final byte EXIT = 5;
+    // client -> server
+    static final byte STDIN = 10;
+    static final byte STDIN_EOF = 11;
+    static final byte KILL = 12;
+
+    private EncForkServerProtocol() {
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Unlike {@link java.nio.channels.Channels#newInputStream}, doesn't hold the channel blocking lock while reading,
+     * so a pending read doesn't block writes to the same connection.
+     */
+    static InputStream inputStream(SocketChannel channel) {
+      return new InputStream() {
+        @Override
+        public int read() throws IOException {
+          byte[] b = new byte[1];
+          return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          if (len == 0) return 0;
+          return channel.read(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public void close() throws IOException {
+          channel.close();
+        }
+      };
+    }
+
+    static OutputStream outputStream(SocketChannel channel) {
+      return new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          write(new byte[]{(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
+        }
+
+        @Override
+        public void close() throws IOException {
+          channel.close();
+        }
+      };
+    }
+  }
+}
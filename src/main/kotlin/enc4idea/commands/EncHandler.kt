@@ -5,12 +5,15 @@ import com.github.suhasdotcom.tig.TigGitVcs
 import com.intellij.execution.ExecutionException
 import com.intellij.execution.configurations.GeneralCommandLine
 import com.intellij.ide.impl.isTrusted
+import com.intellij.openapi.application.AccessToken
 import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.progress.EmptyProgressIndicator
 import com.intellij.openapi.progress.ProcessCanceledException
 import com.intellij.openapi.progress.ProgressManager
 import com.intellij.openapi.progress.util.PotemkinProgress
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.Computable
 import com.intellij.openapi.util.NlsSafe
 import com.intellij.openapi.util.SystemInfo
 import com.intellij.openapi.util.registry.Registry
@@ -20,27 +23,33 @@ import com.intellij.openapi.vcs.ProcessEventListener
 import com.intellij.openapi.vcs.VcsEnvCustomizer
 import com.intellij.openapi.vcs.VcsEnvCustomizer.VcsExecutableContext
 import com.intellij.openapi.vcs.VcsException
-import com.intellij.openapi.vfs.VfsUtil
+import com.intellij.openapi.vfs.LocalFileSystem
 import com.intellij.openapi.vfs.VfsUtilCore
 import com.intellij.openapi.vfs.VirtualFile
-import com.intellij.util.EnvironmentUtil
 import com.intellij.util.EventDispatcher
 import com.intellij.util.ThrowableConsumer
+import com.intellij.util.concurrency.AppExecutorUtil
 import com.intellij.vcsUtil.VcsFileUtil
+import enc4idea.config.EncExecutableManager
+import enc4idea.config.EncProcessAdmission
 import git4idea.GitVcs
 import git4idea.commands.GitCommand
 import git4idea.commands.GitImplBase
 import git4idea.config.GitExecutable
 import git4idea.config.GitExecutableContext
 import git4idea.config.GitExecutableManager
-import git4idea.config.GitVersionSpecialty
+import git4idea.config.GitVersion
+import kotlinx.coroutines.future.await
 import org.jetbrains.annotations.NonNls
+import java.io.BufferedOutputStream
 import java.io.File
 import java.io.IOException
 import java.io.OutputStream
 import java.nio.charset.Charset
 import java.nio.charset.StandardCharsets
 import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * A handler for enc commands
@@ -66,6 +75,7 @@ abstract class EncHandler protected constructor(private val myProject: Project?,
     var isEnableInteractiveCallbacks = true
     protected val myCommandLine: GeneralCommandLine
     private val myCustomEnv: MutableMap<String, String?> = HashMap()
+    @Volatile
     protected var myProcess: Process? = null
     /**
      * @return true if standard output is not copied to the console
@@ -92,6 +102,51 @@ abstract class EncHandler protected constructor(private val myProject: Project?,
             : Boolean
     private val myExecutableContext: GitExecutableContext
     private var myStartTime: Long = 0 // enc execution start timestamp
+    private var myStartNanos: Long = 0
+    private var mySpawnNanos: Long = -1 // time spent in startProcess()
+    @Volatile
+    private var myFirstOutputNanos: Long = -1 // time to the first output byte
+    private var myQueueWaitNanos: Long = 0 // time spent waiting for the execution permit
+    private var myCommandEvent: EncCommandEvent? = null // only set while JFR records enc events
+    private val myBytesRead = AtomicLong()
+    private var myWatch: EncProcessWatchdog.Watch? = null
+
+    /**
+     * True if the output of the command depends only on its parameters and the repository state,
+     * so it can be reused until the repository changes, see [EncResultCache]
+     */
+    var isCacheable = false
+
+    /**
+     * Timeout after which the process and its descendants are destroyed, non-positive for no timeout.
+     * Defaults to the `enc.command.timeout.<command>.ms` registry value, or to `enc.command.timeout.ms` if that one is negative or absent.
+     */
+    var timeoutMs: Long = Registry.intValue("enc.command.timeout." + command.name() + ".ms", -1).let {
+        if (it >= 0) it else Registry.intValue("enc.command.timeout.ms", 0)
+    }.toLong()
+
+    /**
+     * @return the reason the process was destroyed by [EncProcessWatchdog], or null if it wasn't
+     */
+    val killReport: EncProcessWatchdog.KillReport?
+        get() = myWatch?.killReport
+
+    /**
+     * True if the handler was created on EDT, or under a modal progress, or modifies the repository,
+     * i.e. most likely someone waits for it. Such handlers are scheduled before other ones, see [EncCommandScheduler].
+     */
+    var isUserInitiated: Boolean = ApplicationManager.getApplication().isDispatchThread ||
+            ProgressManager.getInstance().hasModalProgressIndicator() ||
+            command.lockingPolicy() == GitCommand.LockingPolicy.WRITE
+
+    /**
+     * Should be set by callers for work no one waits for, e.g. periodic refreshes.
+     * Such handlers, unless they modify the repository, may be deferred or run with lower priority, see [EncBackgroundPolicy].
+     */
+    var isBackground: Boolean = false
+
+    private val isAdaptivelyScheduled: Boolean
+        get() = isBackground && command.lockingPolicy() != GitCommand.LockingPolicy.WRITE
 
     /**
      * A constructor
@@ -191,6 +246,37 @@ abstract class EncHandler protected constructor(private val myProject: Project?,
         }
     }
 
+    /**
+     * Pass paths to the process over stdin (`--pathspec-from-file=-`) instead of the command line,
+     * so that the number of paths is not limited by [VcsFileUtil.FILE_PATH_LIMIT].
+     * Paths are converted and written as the sequence is iterated, after the process has started.
+     *
+     * Should be called instead of [endOptions] and [addRelativePaths].
+     * Falls back to [addRelativePaths] if the command or the executable version doesn't support pathspec files.
+     */
+    fun addRelativePathsViaStdin(filePaths: Sequence<FilePath>) {
+        if (!isPathspecFromFileSupported) {
+            endOptions()
+            addRelativePaths(filePaths.toList())
+            return
+        }
+        check(myInputProcessor == null) { "Standard input is already used by another input processor" }
+        myCommandLine.addParameters("--pathspec-from-file=-", "--pathspec-file-nul")
+        val directory = workingDirectory
+        setInputProcessor { stream ->
+            BufferedOutputStream(stream!!).use { output ->
+                for (path in filePaths) {
+                    output.write(VcsFileUtil.relativePath(directory, path).toByteArray(charset))
+                    output.write(0)
+                }
+            }
+        }
+    }
+
+    private val isPathspecFromFileSupported: Boolean
+        get() = command.name() in PATHSPEC_FROM_FILE_COMMANDS &&
+                EncExecutableManager.getInstance().getVersion(executable).isLaterOrEqual(PATHSPEC_FROM_FILE_VERSION)
+
     fun addAbsoluteFile(file: File) {
         myCommandLine.addParameter(executable.convertFilePath(file))
     }
@@ -208,7 +294,10 @@ abstract class EncHandler protected constructor(private val myProject: Project?,
         /**
          * @return true if the command line is too big
          */
-        get() = myCommandLine.commandLineString.length > VcsFileUtil.FILE_PATH_LIMIT
+        get() = commandLineLength > VcsFileUtil.FILE_PATH_LIMIT
+
+    internal val commandLineLength: Int
+        get() = myCommandLine.commandLineString.length
 
     /**
      * @return a command line with full path to executable replace to "enc"
@@ -259,6 +348,16 @@ abstract class EncHandler protected constructor(private val myProject: Project?,
         myInputProcessor = inputProcessor
     }
 
+    /**
+     * Feed the standard input from the given source, e.g. a patch file, without copying it through the heap.
+     * The input is closed when the source has been written.
+     */
+    fun setInputSource(source: EncInputSource) {
+        setInputProcessor { stream ->
+            stream!!.use { source.writeTo(EncInputSource.channelOf(it)) }
+        }
+    }
+
     /**
      * Add environment variable to this handler
      *
@@ -276,14 +375,16 @@ abstract class EncHandler protected constructor(private val myProject: Project?,
     @Throws(IOException::class)
     fun runInCurrentThread() {
         try {
-            start()
-            if (isStarted) {
-                try {
-                    if (myInputProcessor != null) {
-                        myInputProcessor!!.consume(myProcess!!.outputStream)
+            acquireExecutionPermit().use { permit ->
+                start()
+                if (isStarted) {
+                    try {
+                        if (myInputProcessor != null) {
+                            runAsHolder(permit) { myInputProcessor!!.consume(myProcess!!.outputStream) }
+                        }
+                    } finally {
+                        waitForProcessRecorded()
                     }
-                } finally {
-                    waitForProcess()
                 }
             }
         } finally {
@@ -291,8 +392,226 @@ abstract class EncHandler protected constructor(private val myProject: Project?,
         }
     }
 
+    /**
+     * Start the process without blocking the calling thread for the process lifetime.
+     * Output is delivered the same way as for [runInCurrentThread], e.g. to the [EncOutputConsumer] of [EncStreamingHandler].
+     *
+     * Waiting for the execution permit, starting the process and running the input processor happen on a pooled thread,
+     * so a large input, e.g. paths passed over stdin, occupies that thread until it has been written.
+     * Cancelling the returned future cancels the wait for the permit, or destroys the process if it has been started.
+     *
+     * @return future completed with the exit code when the process has terminated and its output has been read
+     */
+    fun runAsync(): CompletableFuture<Int> {
+        val holder = CURRENT_HOLDER.get()
+        val indicator = EmptyProgressIndicator()
+        val result = CompletableFuture<Int>()
+        result.whenComplete { _, _ ->
+            if (result.isCancelled) {
+                indicator.cancel()
+                myProcess?.let { EncProcessWatchdog.destroyProcessTree(it) }
+            }
+        }
+        AppExecutorUtil.getAppExecutorService().execute {
+            var permit: AccessToken? = null
+            try {
+                if (result.isDone) return@execute
+                permit = ProgressManager.getInstance().runProcess(Computable { acquireExecutionPermit(holder) }, indicator)
+                start()
+                val process = myProcess ?: throw ExecutionException("Failed to start enc $command")
+                if (result.isCancelled) EncProcessWatchdog.destroyProcessTree(process)
+                val processPermit = permit
+                myInputProcessor?.let { processor -> runAsHolder(processPermit) { processor.consume(process.outputStream) } }
+                permit = null
+                process.onExit().thenCombine(awaitStreamsAsync()) { terminated, _ -> terminated.exitValue() }
+                        .whenComplete { exitCode, error ->
+                            processPermit.finish()
+                            logTime()
+                            if (error != null) {
+                                result.completeExceptionally(error)
+                            } else {
+                                @Suppress("DEPRECATION")
+                                this.exitCode = exitCode
+                                myListeners.multicaster.processTerminated(exitCode)
+                                result.complete(exitCode)
+                            }
+                        }
+            } catch (t: Throwable) {
+                permit?.finish()
+                logTime()
+                result.completeExceptionally(t)
+            }
+        }
+        return result
+    }
+
+    /**
+     * Suspending variant of [runAsync]. Cancellation of the coroutine destroys the process.
+     *
+     * @return the exit code
+     */
+    suspend fun run(): Int {
+        return runAsync().await()
+    }
+
+    /**
+     * Let a background handler yield to typing and indexing, see [EncBackgroundPolicy],
+     * then wait for the turn of this handler among the other commands running in the same root, see [EncCommandScheduler],
+     * and for a free slot in the application-wide process budget, see [EncProcessAdmission]
+     *
+     * @param holder permit of the running handler which starts this one from its input processor or post-start action;
+     * this handler runs under it instead of waiting for permits the holder releases only after it has finished
+     */
+    internal fun acquireExecutionPermit(holder: AccessToken? = CURRENT_HOLDER.get()): AccessToken {
+        val waitStart = System.nanoTime()
+        try {
+            if (isAdaptivelyScheduled && holder == null) {
+                EncBackgroundPolicy.getInstance().awaitQuietPeriod(myProject)
+            }
+            return doAcquireExecutionPermit(holder as? ExecutionPermit)
+        } finally {
+            myQueueWaitNanos = System.nanoTime() - waitStart
+        }
+    }
+
+    private fun doAcquireExecutionPermit(holder: ExecutionPermit?): AccessToken {
+        val rootPermit = if (myProject == null || myProject.isDefault) AccessToken.EMPTY_ACCESS_TOKEN
+        else EncCommandScheduler.getInstance(myProject).acquire(this, holder?.rootPermit)
+        try {
+            return ExecutionPermit(rootPermit, EncProcessAdmission.getInstance().acquire(myProject, executable, holder?.processPermit))
+        } catch (t: Throwable) {
+            rootPermit.finish()
+            throw t
+        }
+    }
+
+    private class ExecutionPermit(val rootPermit: AccessToken, val processPermit: AccessToken) : AccessToken() {
+        override fun finish() {
+            try {
+                processPermit.finish()
+            } finally {
+                rootPermit.finish()
+            }
+        }
+    }
+
+    /**
+     * Run a callback of this handler, so that handlers it runs on the calling thread take [permit] as their holder,
+     * see [acquireExecutionPermit]. Handlers run later on the same thread, or on other threads, wait for their own permits.
+     */
+    private inline fun <T> runAsHolder(permit: AccessToken, action: () -> T): T {
+        val previous = CURRENT_HOLDER.get()
+        CURRENT_HOLDER.set(permit)
+        try {
+            return action()
+        } finally {
+            if (previous != null) CURRENT_HOLDER.set(previous) else CURRENT_HOLDER.remove()
+        }
+    }
+
+    /**
+     * @return true if the command can be served by a pooled long-lived `cat-file` process
+     */
+    val isBatchable: Boolean
+        get() = command == GitCommand.CAT_FILE &&
+                command.lockingPolicy() != GitCommand.LockingPolicy.WRITE &&
+                myCustomEnv.isEmpty() &&
+                myInputProcessor == null &&
+                !isStarted
+
+    /**
+     * Run [action] against a pooled `cat-file` batch process instead of starting this handler.
+     * The handler itself is not modified: the batch process gets a copy of its command line.
+     *
+     * @return result of the action, then the handler should not be started;
+     * or null if the pool can't serve the handler, then it can be run with [runInCurrentThread] as usual
+     */
+    fun <T> runInBatchProcess(mode: EncBatchProcessPool.Mode, action: (EncBatchProcessPool.BatchProcess) -> T): T? {
+        if (!isBatchable) return null
+        return EncBatchProcessPool.getInstance().query(this, mode, action)
+    }
+
+    /**
+     * @return true if the handler can share its process with identical concurrent handlers, see [EncCommandCoalescer]
+     */
+    val isCoalescable: Boolean
+        get() = command.lockingPolicy() != GitCommand.LockingPolicy.WRITE &&
+                myCustomEnv.isEmpty() &&
+                myInputProcessor == null &&
+                !isStarted
+
+    internal val parameters: List<String>
+        get() = myCommandLine.parametersList.list
+
+    internal fun checkTrusted() {
+        check(!(myProject != null && !myProject.isDefault && !myProject.isTrusted())) { "Shouldn't be possible to run a enc command in the safe mode" }
+    }
+
+    /**
+     * @return a copy of the command line of this handler prepared to start a `cat-file` batch process
+     */
+    internal fun createBatchCommandLine(mode: EncBatchProcessPool.Mode): GeneralCommandLine {
+        val commandLine = GeneralCommandLine()
+                .withWorkDirectory(myCommandLine.workDirectory)
+                .withExePath(myCommandLine.exePath)
+                .withCharset(myCommandLine.charset)
+        commandLine.addParameters(myCommandLine.parametersList.list)
+        commandLine.addParameter(mode.option)
+        prepareEnvironment(commandLine)
+        executable.patchCommandLine(this, commandLine, myExecutableContext)
+        return commandLine
+    }
+
+    /**
+     * Should be called by stream handlers when output is received, to measure the time to the first output byte
+     */
+    protected fun notifyOutputReceived(byteCount: Int) {
+        if (myFirstOutputNanos < 0 && myStartNanos > 0) {
+            myFirstOutputNanos = System.nanoTime() - myStartNanos
+        }
+        if (myCommandEvent != null) myBytesRead.addAndGet(byteCount.toLong())
+    }
+
+    private fun waitForProcessRecorded() {
+        if (!EncProcessWaitEvent.isRecorded) {
+            waitForProcess()
+            return
+        }
+        val event = EncProcessWaitEvent()
+        event.begin()
+        try {
+            waitForProcess()
+        } finally {
+            event.end()
+            if (event.shouldCommit()) {
+                event.command = command.name()
+                event.root = workingDirectory.path
+                event.commit()
+            }
+        }
+    }
+
+    private fun commitCommandEvent() {
+        val event = myCommandEvent ?: return
+        myCommandEvent = null
+        event.end()
+        if (event.shouldCommit()) {
+            event.command = command.name()
+            event.root = workingDirectory.path
+            event.argumentCount = myCommandLine.parametersList.parametersCount
+            event.bytesRead = myBytesRead.get()
+            @Suppress("DEPRECATION")
+            event.exitCode = exitCode
+            event.queueWait = myQueueWaitNanos
+            event.commit()
+        }
+    }
+
     private fun logTime() {
+        myWatch?.cancel()
+        commitCommandEvent()
         if (myStartTime > 0) {
+            EncCommandMetrics.getInstance().record(this, mySpawnNanos, myFirstOutputNanos, System.nanoTime() - myStartNanos)
             val time = System.currentTimeMillis() - myStartTime
             if (!TIME_LOG.isDebugEnabled && time > LONG_TIME) {
                 LOG.info(formatDurationMessage(time))
@@ -309,10 +628,16 @@ abstract class EncHandler protected constructor(private val myProject: Project?,
     }
 
     private fun start() {
-        check(!(myProject != null && !myProject.isDefault && !myProject.isTrusted())) { "Shouldn't be possible to run a enc command in the safe mode" }
+        checkTrusted()
         check(!isStarted) { "The process has been already started" }
         try {
             myStartTime = System.currentTimeMillis()
+            myStartNanos = System.nanoTime()
+            if (EncCommandEvent.isRecorded) {
+                val event = EncCommandEvent()
+                event.begin()
+                myCommandEvent = event
+            }
             val logDirectoryPath = if (myProject != null) GitImplBase.stringifyWorkingDir(myProject.basePath, myCommandLine.workDirectory) else myCommandLine.workDirectory.path
             if (!mySilent) {
                 LOG.info("[" + logDirectoryPath + "] " + printableCommandLine())
@@ -323,11 +648,24 @@ abstract class EncHandler protected constructor(private val myProject: Project?,
                 CALL_TRACE_LOG.debug(Throwable("[" + logDirectoryPath + "] " + printableCommandLine()))
             }
             prepareEnvironment()
+            val backgroundPolicy = EncBackgroundPolicy.getInstance()
+            if (isAdaptivelyScheduled && backgroundPolicy.isSystemOverloaded()) {
+                withLowPriority()
+            }
             executable.patchCommandLine(this, myCommandLine, myExecutableContext)
+            if (myExecutableContext.isWithLowPriority && executable is GitExecutable.Local) {
+                backgroundPolicy.setupIdleIoPriority(myCommandLine)
+            }
             OUTPUT_LOG.debug(String.format("%s %% %s started: %s", command, this.hashCode(), myCommandLine))
 
             // start process
+            val spawnStart = System.nanoTime()
             myProcess = startProcess()
+            mySpawnNanos = System.nanoTime() - spawnStart
+            myProcess?.let {
+                myWatch = EncProcessWatchdog.getInstance().watch(command.name(), logDirectoryPath, it, timeoutMs,
+                        ProgressManager.getInstance().progressIndicator)
+            }
             startHandlingStreams()
         } catch (pce: ProcessCanceledException) {
             throw pce
@@ -339,13 +677,10 @@ abstract class EncHandler protected constructor(private val myProject: Project?,
         }
     }
 
-    private fun prepareEnvironment() {
-        val executionEnvironment = myCommandLine.environment
+    private fun prepareEnvironment(commandLine: GeneralCommandLine = myCommandLine) {
+        val executionEnvironment = commandLine.environment
         executionEnvironment.clear()
-        if (executable.isLocal) {
-            executionEnvironment.putAll(EnvironmentUtil.getEnvironmentMap())
-        }
-        executionEnvironment.putAll(executable.getLocaleEnv())
+        executionEnvironment.putAll(EncEnvironmentCache.getInstance().getBaseEnvironment(executable))
         executionEnvironment.putAll(myCustomEnv)
         executionEnvironment[GitCommand.IJ_HANDLER_MARKER_ENV] = "true"
         if (!shouldSuppressReadLocks() && Registry.`is`("git.use.env.from.project.context")) {
@@ -357,11 +692,29 @@ abstract class EncHandler protected constructor(private val myProject: Project?,
     @Throws(ExecutionException::class)
     protected abstract fun startProcess(): Process?
 
+    /**
+     * Creates the process for the prepared command line: through [EncForkServerClient] if it's enabled and available,
+     * otherwise directly from the IDE process.
+     */
+    @Throws(ExecutionException::class)
+    protected fun createProcess(): Process {
+        if (executable is GitExecutable.Local) {
+            EncForkServerClient.getInstance().start(myCommandLine)?.let { return it }
+        }
+        return myCommandLine.createProcess()
+    }
+
     /**
      * Start handling process output streams for the handler.
      */
     protected abstract fun startHandlingStreams()
 
+    /**
+     * @return future completed when the process output handled by [startHandlingStreams] has been fully read, used by [runAsync].
+     * Must not block: [runAsync] reports termination only after both the process and this future have completed.
+     */
+    protected abstract fun awaitStreamsAsync(): CompletableFuture<*>
+
     /**
      * Wait for process
      */
@@ -391,14 +744,13 @@ abstract class EncHandler protected constructor(private val myProject: Project?,
                 .withWorkDirectory(directory)
                 .withExePath(executable.exePath)
                 .withCharset(StandardCharsets.UTF_8)
-        for (parameter in getConfigParameters(myProject, configParameters)) {
-            myCommandLine.addParameters("-c", parameter)
-        }
+        addConfigParameters(myProject, myCommandLine, configParameters)
         myCommandLine.addParameter(command.name())
         isStdoutSuppressed = true
         mySilent = command.lockingPolicy() != GitCommand.LockingPolicy.WRITE
-        val gitVcs = if (myProject != null) TigGitVcs.getInstance(myProject) else null
-        val root = VfsUtil.findFileByIoFile(directory, true)
+        val rootCache = if (myProject != null && !myProject.isDefault) EncRootCache.getInstance(myProject) else null
+        val gitVcs = if (rootCache != null) rootCache.vcs else if (myProject != null) TigGitVcs.getInstance(myProject) else null
+        val root = if (rootCache != null) rootCache.findRoot(directory) else LocalFileSystem.getInstance().findFileByIoFile(directory)
         val executableType = if (executable is Wsl) VcsEnvCustomizer.ExecutableType.WSL else VcsEnvCustomizer.ExecutableType.LOCAL
         myExecutableContext = GitExecutableContext(gitVcs, root, executableType)
     }
@@ -424,10 +776,12 @@ abstract class EncHandler protected constructor(private val myProject: Project?,
     @Deprecated("remove together with {@link EncHandlerUtil}")
     fun runInCurrentThread(postStartAction: Runnable?) {
         try {
-            start()
-            if (isStarted) {
-                postStartAction?.run()
-                waitForProcess()
+            acquireExecutionPermit().use { permit ->
+                start()
+                if (isStarted) {
+                    if (postStartAction != null) runAsHolder(permit) { postStartAction.run() }
+                    waitForProcessRecorded()
+                }
             }
         } finally {
             logTime()
@@ -440,19 +794,22 @@ abstract class EncHandler protected constructor(private val myProject: Project?,
         protected val TIME_LOG = Logger.getInstance("#time." + EncHandler::class.java.getName())
         protected val CALL_TRACE_LOG = Logger.getInstance("#call_trace." + EncHandler::class.java.getName())
         private const val LONG_TIME = (10 * 1000).toLong()
-        private fun getConfigParameters(project: Project?,
-                                        requestedConfigParameters: List<String?>): List<String?> {
-            if (project == null || !GitVersionSpecialty.CAN_OVERRIDE_GIT_CONFIG_FOR_COMMAND.existsIn(project)) {
-                return emptyList<@NonNls String?>()
+        private val CURRENT_HOLDER = ThreadLocal<AccessToken>() // permit of the handler whose callback runs on this thread
+        private val PATHSPEC_FROM_FILE_VERSION = GitVersion(2, 26, 0, 0)
+        private val PATHSPEC_FROM_FILE_COMMANDS = setOf("add", "checkout", "commit", "reset", "restore", "rm", "stash")
+        private fun addConfigParameters(project: Project?,
+                                        commandLine: GeneralCommandLine,
+                                        requestedConfigParameters: List<String?>) {
+            if (project == null) return
+            val prefix = EncCommandLinePrefix.getInstance(project).get()
+            if (!prefix.canOverrideConfig) return
+            commandLine.addParameters(prefix.parameters)
+            for (parameter in requestedConfigParameters) {
+                commandLine.addParameters("-c", parameter)
             }
-            val toPass: MutableList<String?> = ArrayList()
-            toPass.add("core.quotepath=false")
-            toPass.add("log.showSignature=false")
-            toPass.addAll(requestedConfigParameters)
             if (ApplicationManager.getApplication().isUnitTestMode) {
-                toPass.add("protocol.file.allow=always")
+                commandLine.addParameters("-c", "protocol.file.allow=always")
             }
-            return toPass
         }
 
         /**
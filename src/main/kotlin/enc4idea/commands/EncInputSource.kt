@@ -0,0 +1,64 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.intellij.openapi.progress.ProgressManager
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.channels.WritableByteChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+
+/**
+ * Data to be fed to the standard input of a command, see [EncHandler.setInputSource].
+ *
+ * Sources write to a channel over the process pipe in chunks: a file is transferred with [FileChannel.transferTo]
+ * and a buffer is written as is, so the whole input is never materialized on the heap.
+ * Writes block while the pipe is full; this doesn't deadlock because the output of the process is read
+ * by other threads at the same time.
+ *
+ * A generator can be passed as a lambda, it should check for cancellation between chunks.
+ */
+fun interface EncInputSource {
+    @Throws(IOException::class)
+    fun writeTo(channel: WritableByteChannel)
+
+    companion object {
+        private const val CHUNK_SIZE = 1024L * 1024
+
+        @JvmStatic
+        fun file(path: Path): EncInputSource = EncInputSource { channel ->
+            FileChannel.open(path, StandardOpenOption.READ).use { file ->
+                val size = file.size()
+                var position = 0L
+                while (position < size) {
+                    ProgressManager.checkCanceled()
+                    position += file.transferTo(position, minOf(CHUNK_SIZE, size - position), channel)
+                }
+            }
+        }
+
+        @JvmStatic
+        fun buffer(buffer: ByteBuffer): EncInputSource = EncInputSource { channel ->
+            val data = buffer.duplicate()
+            while (data.hasRemaining()) {
+                ProgressManager.checkCanceled()
+                val slice = data.duplicate()
+                slice.limit(slice.position() + minOf(data.remaining().toLong(), CHUNK_SIZE).toInt())
+                val written = channel.write(slice)
+                data.position(data.position() + written)
+            }
+        }
+
+        /**
+         * A [FileOutputStream] is written through its own channel, which lets the kernel move file data directly;
+         * any other stream, e.g. the buffered stdin of a process, through a channel over the stream.
+         */
+        internal fun channelOf(stream: OutputStream): WritableByteChannel {
+            return (stream as? FileOutputStream)?.channel ?: Channels.newChannel(stream)
+        }
+    }
+}
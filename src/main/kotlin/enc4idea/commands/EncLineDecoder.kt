@@ -0,0 +1,173 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.nio.charset.Charset
+import java.nio.charset.CharsetDecoder
+import java.nio.charset.CodingErrorAction
+import java.nio.charset.StandardCharsets
+
+/**
+ * Splits raw process output into lines without allocating a String per line.
+ *
+ * Each stream gets one reused [CharsetDecoder] and one growing line buffer. For ASCII-compatible charsets
+ * (UTF-8 is what [EncHandler] uses by default) ASCII bytes are copied directly and only non-ASCII runs go through the decoder.
+ * Lines are handed out as a reused [CharSequence] view which is valid only during [LineListener.onLine];
+ * call `toString()` to keep a line.
+ */
+class EncLineDecoder(private val myCharset: Charset, private val myListener: LineListener) : EncOutputConsumer {
+    fun interface LineListener {
+        /**
+         * @param line the line without the line separator, valid only until the method returns
+         */
+        fun onLine(line: CharSequence, isStderr: Boolean)
+
+        /**
+         * The stream has been fully read.
+         */
+        fun onEnd(isStderr: Boolean) {}
+    }
+
+    private val myStdout = StreamState(false)
+    private val myStderr = StreamState(true)
+    private val myAsciiCompatible = myCharset == StandardCharsets.UTF_8 ||
+            myCharset == StandardCharsets.US_ASCII ||
+            myCharset == StandardCharsets.ISO_8859_1
+
+    override fun onOutput(buffer: ByteBuffer, isStderr: Boolean) {
+        state(isStderr).feed(buffer)
+    }
+
+    override fun onOutputEnd(isStderr: Boolean) {
+        state(isStderr).finish()
+        myListener.onEnd(isStderr)
+    }
+
+    private fun state(isStderr: Boolean) = if (isStderr) myStderr else myStdout
+
+    private inner class StreamState(private val isStderr: Boolean) {
+        private val myDecoder: CharsetDecoder = myCharset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE)
+        private val myDecoded = CharBuffer.allocate(DECODE_BUFFER_SIZE)
+        private val myPending = ByteBuffer.allocate(PENDING_BUFFER_SIZE) // an incomplete character split between chunks
+        private var myDecoderUsed = false
+        private var myLine = CharArray(INITIAL_LINE_SIZE)
+        private var myLineLength = 0
+        private val myView = LineView()
+
+        fun feed(buffer: ByteBuffer) {
+            if (!myAsciiCompatible) {
+                decode(buffer, false)
+                return
+            }
+
+            var position = buffer.position()
+            val limit = buffer.limit()
+            while (position < limit) {
+                val b = buffer.get(position)
+                if (b >= 0 && !myDecoderUsed) {
+                    if (b == NEW_LINE) emitLine() else append(b.toInt().toChar())
+                    position++
+                    continue
+                }
+
+                // a newline byte can't be a part of a multibyte character in ASCII-compatible charsets
+                var runEnd = position
+                while (runEnd < limit && buffer.get(runEnd) != NEW_LINE) runEnd++
+                val run = buffer.duplicate()
+                run.position(position).limit(runEnd)
+                decode(run, false)
+                if (runEnd < limit) {
+                    finishCharacter()
+                    emitLine()
+                    runEnd++
+                }
+                position = runEnd
+            }
+            buffer.position(limit)
+        }
+
+        fun finish() {
+            finishCharacter()
+            if (myLineLength > 0) emitLine()
+        }
+
+        private fun decode(input: ByteBuffer, endOfInput: Boolean) {
+            myDecoderUsed = true
+            while (myPending.position() > 0 && input.hasRemaining()) {
+                myPending.put(input.get())
+                myPending.flip()
+                decodeChunk(myPending, false)
+                myPending.compact()
+            }
+            if (myPending.position() > 0) return
+
+            decodeChunk(input, endOfInput)
+            if (input.hasRemaining()) myPending.put(input)
+        }
+
+        private fun decodeChunk(input: ByteBuffer, endOfInput: Boolean) {
+            while (true) {
+                val result = myDecoder.decode(input, myDecoded, endOfInput)
+                drainDecoded()
+                if (!result.isOverflow) break
+            }
+        }
+
+        private fun finishCharacter() {
+            if (!myDecoderUsed) return
+            myPending.flip()
+            decodeChunk(myPending, true)
+            myPending.clear()
+            myDecoder.flush(myDecoded)
+            drainDecoded()
+            myDecoder.reset()
+            myDecoderUsed = false
+        }
+
+        private fun drainDecoded() {
+            myDecoded.flip()
+            while (myDecoded.hasRemaining()) {
+                val c = myDecoded.get()
+                // only reachable for charsets which are not ASCII-compatible
+                if (c == '\n') emitLine() else append(c)
+            }
+            myDecoded.clear()
+        }
+
+        private fun append(c: Char) {
+            if (myLineLength == myLine.size) myLine = myLine.copyOf(myLine.size * 2)
+            myLine[myLineLength++] = c
+        }
+
+        private fun emitLine() {
+            var length = myLineLength
+            if (length > 0 && myLine[length - 1] == '\r') length--
+            myView.length = length
+            myLineLength = 0
+            myListener.onLine(myView, isStderr)
+        }
+
+        private inner class LineView : CharSequence {
+            override var length: Int = 0
+
+            override fun get(index: Int): Char {
+                if (index >= length) throw IndexOutOfBoundsException("$index >= $length")
+                return myLine[index]
+            }
+
+            override fun subSequence(startIndex: Int, endIndex: Int): CharSequence = String(myLine, startIndex, endIndex - startIndex)
+
+            override fun toString(): String = String(myLine, 0, length)
+        }
+    }
+
+    companion object {
+        private const val NEW_LINE = '\n'.code.toByte()
+        private const val DECODE_BUFFER_SIZE = 4096
+        private const val PENDING_BUFFER_SIZE = 16
+        private const val INITIAL_LINE_SIZE = 256
+    }
+}
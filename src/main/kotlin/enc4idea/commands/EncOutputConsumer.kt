@@ -0,0 +1,20 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import java.nio.ByteBuffer
+
+/**
+ * Receives raw process output from [EncStreamingHandler].
+ * Calls for one stream come from a single thread, stdout and stderr may be delivered concurrently.
+ */
+interface EncOutputConsumer {
+    /**
+     * @param buffer the next piece of output, valid only until the method returns
+     */
+    fun onOutput(buffer: ByteBuffer, isStderr: Boolean)
+
+    /**
+     * The stream has been fully read.
+     */
+    fun onOutputEnd(isStderr: Boolean) {}
+}
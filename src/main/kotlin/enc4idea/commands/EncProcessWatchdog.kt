@@ -0,0 +1,134 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.util.concurrency.AppExecutorUtil
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedDeque
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Destroys enc processes which run past their deadline or whose [ProgressIndicator] was cancelled,
+ * together with all their descendants (credential helpers, hooks, ssh).
+ *
+ * Recent kills are kept in [getKillReports] and logged.
+ */
+@Service(Service.Level.APP)
+class EncProcessWatchdog : Disposable {
+    enum class Reason { TIMEOUT, CANCELLED }
+
+    class KillReport(val description: String,
+                     val directory: String,
+                     val pid: Long,
+                     val descendantPids: List<Long>,
+                     val reason: Reason,
+                     val runningMs: Long) {
+        override fun toString(): String {
+            return "[$directory] $description (pid $pid, descendants $descendantPids) killed after $runningMs ms: $reason"
+        }
+    }
+
+    inner class Watch internal constructor(val description: String,
+                                           val directory: String,
+                                           val process: Process,
+                                           private val myDeadline: Long,
+                                           private val myIndicator: ProgressIndicator?) {
+        private val myStartTime = System.currentTimeMillis()
+
+        @Volatile
+        var killReport: KillReport? = null
+            private set
+
+        /**
+         * Stop watching the process, e.g. when it has terminated normally.
+         */
+        fun cancel() {
+            myWatches.remove(this)
+        }
+
+        internal fun check(now: Long) {
+            if (!process.isAlive) {
+                cancel()
+                return
+            }
+            val reason = when {
+                myDeadline in 1..now -> Reason.TIMEOUT
+                myIndicator != null && myIndicator.isCanceled -> Reason.CANCELLED
+                else -> return
+            }
+            cancel()
+            val descendants = destroyProcessTree(process)
+            val report = KillReport(description, directory, process.pid(), descendants, reason, now - myStartTime)
+            killReport = report
+            myReports.addFirst(report)
+            while (myReports.size > MAX_REPORTS) myReports.pollLast()
+            LOG.warn(report.toString())
+        }
+    }
+
+    private val myWatches: MutableSet<Watch> = ConcurrentHashMap.newKeySet()
+    private val myReports = ConcurrentLinkedDeque<KillReport>()
+    private val myCheckFuture: ScheduledFuture<*> = AppExecutorUtil.getAppScheduledExecutorService()
+            .scheduleWithFixedDelay({ checkWatches() }, CHECK_PERIOD_MS, CHECK_PERIOD_MS, TimeUnit.MILLISECONDS)
+
+    /**
+     * @param timeoutMs timeout of the process, non-positive for no timeout
+     * @param indicator indicator whose cancellation should terminate the process
+     */
+    fun watch(description: String, directory: String, process: Process, timeoutMs: Long, indicator: ProgressIndicator?): Watch {
+        val deadline = if (timeoutMs > 0) System.currentTimeMillis() + timeoutMs else 0
+        val watch = Watch(description, directory, process, deadline, indicator)
+        if (deadline > 0 || indicator != null) myWatches.add(watch)
+        return watch
+    }
+
+    /**
+     * @return recently killed processes, most recent first
+     */
+    fun getKillReports(): List<KillReport> = myReports.toList()
+
+    private fun checkWatches() {
+        val now = System.currentTimeMillis()
+        for (watch in myWatches) {
+            try {
+                watch.check(now)
+            } catch (e: Exception) {
+                LOG.warn("Failed to check ${watch.description}", e)
+            }
+        }
+    }
+
+    override fun dispose() {
+        myCheckFuture.cancel(false)
+        myWatches.clear()
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(EncProcessWatchdog::class.java)
+        private const val CHECK_PERIOD_MS = 500L
+        private const val MAX_REPORTS = 100
+
+        @JvmStatic
+        fun getInstance(): EncProcessWatchdog = ApplicationManager.getApplication().getService(EncProcessWatchdog::class.java)
+
+        /**
+         * Forcibly destroy the process and all its descendants.
+         *
+         * @return pids of the destroyed descendants
+         */
+        @JvmStatic
+        fun destroyProcessTree(process: Process): List<Long> {
+            val descendants = process.descendants().toList()
+            for (descendant in descendants.asReversed()) {
+                descendant.destroyForcibly()
+            }
+            process.destroyForcibly()
+            return descendants.map { it.pid() }
+        }
+    }
+}
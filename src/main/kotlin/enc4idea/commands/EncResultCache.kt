@@ -0,0 +1,228 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.google.common.annotations.VisibleForTesting
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.io.FileUtil
+import com.intellij.openapi.util.registry.Registry
+import com.intellij.openapi.vcs.ProjectLevelVcsManager
+import com.intellij.openapi.vcs.VcsListener
+import com.intellij.openapi.vfs.VirtualFileManager
+import com.intellij.openapi.vfs.newvfs.BulkFileListener
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.NoSuchFileException
+import java.nio.file.Path
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Caches results of read-only commands marked with [EncHandler.isCacheable] until the repository state changes.
+ * Only commands which could also share a process, see [EncHandler.isCoalescable], are cached: the key doesn't cover
+ * standard input or custom environment variables.
+ *
+ * The repository state is fingerprinted by the file key (inode), modification time and size of a fixed set of files:
+ * HEAD, the index, the config, packed-refs, FETCH_HEAD, the HEAD reflog and the loose ref of the current branch,
+ * plus the contents of HEAD and of that ref, so a lookup reads a few attributes regardless of the number of refs.
+ * Git rewrites these files through a lock file and a rename, so the file key changes on every update even if the timestamp
+ * and the size stay the same; the contents cover file systems without file keys.
+ * This covers commits, checkouts, staging, fetches and pushes. Changes of other loose refs, e.g. a new branch or `refs/stash`,
+ * are picked up from VFS events under `refs/`, which drop the cached results.
+ *
+ * Entries are evicted in LRU order once their total size exceeds `enc.result.cache.max.kb`.
+ * Resolved repository locations are dropped when VCS mappings change or the repository directory disappears.
+ */
+@Service(Service.Level.PROJECT)
+class EncResultCache(project: Project) : Disposable {
+    class CachedResult(val exitCode: Int, val output: List<String>, val errorOutput: List<String>) {
+        internal val weight: Long = ENTRY_OVERHEAD + 2L * (output.sumOf { it.length } + errorOutput.sumOf { it.length })
+    }
+
+    class Statistics(val hits: Long, val misses: Long, val entries: Int, val sizeBytes: Long) {
+        override fun toString(): String = "hits=$hits, misses=$misses, entries=$entries, size=${sizeBytes / 1024}KB"
+    }
+
+    private data class Key(val workingDirectory: String,
+                           val parameters: List<String>,
+                           val executableId: String,
+                           val exePath: String,
+                           val fingerprint: String)
+
+    private val myLock = ReentrantLock()
+    private val myEntries = LinkedHashMap<Key, CachedResult>(16, 0.75f, true)
+    private var myWeight = 0L
+    private val myHits = AtomicLong()
+    private val myMisses = AtomicLong()
+    private val myGitDirs = ConcurrentHashMap<String, GitDirs>()
+
+    init {
+        val connection = project.messageBus.connect(this)
+        connection.subscribe(ProjectLevelVcsManager.VCS_CONFIGURATION_CHANGED, VcsListener { clear() })
+        connection.subscribe(VirtualFileManager.VFS_CHANGES, object : BulkFileListener {
+            override fun after(events: List<VFileEvent>) {
+                if (events.any { isRefChange(it.path) }) clearEntries()
+            }
+        })
+    }
+
+    /**
+     * @param compute runs the handler and captures its result; called on cache miss or if the handler is not cacheable
+     */
+    fun getOrCompute(handler: EncHandler, compute: () -> CachedResult): CachedResult {
+        if (!handler.isCacheable || !handler.isCoalescable) return compute()
+        val fingerprint = fingerprint(handler.workingDirectory) ?: return compute()
+
+        val key = Key(handler.workingDirectory.path, handler.parameters, handler.executable.id, handler.executable.exePath, fingerprint)
+        myLock.withLock { myEntries[key] }?.let {
+            myHits.incrementAndGet()
+            return it
+        }
+
+        myMisses.incrementAndGet()
+        val result = compute()
+        // don't store results of commands which raced with a repository change
+        if (result.exitCode == 0 && fingerprint == fingerprint(handler.workingDirectory)) {
+            store(key, result)
+        }
+        return result
+    }
+
+    private fun store(key: Key, result: CachedResult) {
+        val maxWeight = Registry.intValue("enc.result.cache.max.kb", DEFAULT_MAX_KB) * 1024L
+        if (result.weight > maxWeight / 4) return
+        myLock.withLock {
+            myEntries.put(key, result)?.let { myWeight -= it.weight }
+            myWeight += result.weight
+            val iterator = myEntries.values.iterator()
+            while (myWeight > maxWeight && iterator.hasNext()) {
+                myWeight -= iterator.next().weight
+                iterator.remove()
+            }
+        }
+    }
+
+    fun getStatistics(): Statistics {
+        return myLock.withLock { Statistics(myHits.get(), myMisses.get(), myEntries.size, myWeight) }
+    }
+
+    fun clear() {
+        clearEntries()
+        myGitDirs.clear()
+    }
+
+    private fun clearEntries() {
+        myLock.withLock {
+            myEntries.clear()
+            myWeight = 0
+        }
+    }
+
+    private class GitDirs(val gitDir: Path, val commonDir: Path) {
+        val refsPrefixes = setOf(gitDir, commonDir).map { FileUtil.toSystemIndependentName(it.resolve("refs").toString()) + "/" }
+    }
+
+    private fun isRefChange(path: String): Boolean {
+        return myGitDirs.values.any { dirs -> dirs.refsPrefixes.any { path.startsWith(it) } }
+    }
+
+    override fun dispose() {
+        clear()
+    }
+
+    private fun getGitDirs(workingDirectory: File): GitDirs? {
+        val cached = myGitDirs[workingDirectory.path]
+        if (cached != null && Files.isDirectory(cached.gitDir)) return cached
+        myGitDirs.remove(workingDirectory.path)
+        return findGitDirs(workingDirectory)?.also { myGitDirs[workingDirectory.path] = it }
+    }
+
+    @VisibleForTesting
+    internal fun fingerprint(workingDirectory: File): String? {
+        val dirs = getGitDirs(workingDirectory) ?: return null
+        try {
+            val fingerprint = StringBuilder()
+            for (file in PER_WORKTREE_FILES) appendState(fingerprint, dirs.gitDir.resolve(file))
+            for (file in SHARED_FILES) appendState(fingerprint, dirs.commonDir.resolve(file))
+            val head = appendContent(fingerprint, dirs.gitDir.resolve("HEAD"))
+            if (head != null && head.startsWith(SYMBOLIC_REF_PREFIX)) {
+                val branch = dirs.commonDir.resolve(head.removePrefix(SYMBOLIC_REF_PREFIX).trim())
+                appendState(fingerprint, branch)
+                appendContent(fingerprint, branch)
+            }
+            return fingerprint.toString()
+        } catch (e: IOException) {
+            LOG.debug("Can't fingerprint repository state of $workingDirectory", e)
+            return null
+        }
+    }
+
+    private fun appendState(fingerprint: StringBuilder, path: Path) {
+        try {
+            val attributes = Files.readAttributes(path, BasicFileAttributes::class.java)
+            fingerprint.append(attributes.fileKey()).append(':')
+                    .append(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)).append(':')
+                    .append(attributes.size()).append(';')
+        } catch (e: NoSuchFileException) {
+            fingerprint.append("-;")
+        }
+    }
+
+    /**
+     * @return the trimmed content, or null if the file doesn't exist
+     */
+    private fun appendContent(fingerprint: StringBuilder, path: Path): String? {
+        try {
+            val content = Files.readString(path).trim()
+            fingerprint.append(content).append(';')
+            return content
+        } catch (e: NoSuchFileException) {
+            fingerprint.append("-;")
+            return null
+        }
+    }
+
+    private fun findGitDirs(workingDirectory: File): GitDirs? {
+        try {
+            var dir: File? = workingDirectory.absoluteFile
+            while (dir != null) {
+                val dotGit = dir.toPath().resolve(".git")
+                if (Files.isDirectory(dotGit)) return GitDirs(dotGit, dotGit)
+                if (Files.isRegularFile(dotGit)) {
+                    // worktree or submodule: "gitdir: <path>", shared refs are in "commondir"
+                    val content = Files.readString(dotGit).trim()
+                    if (!content.startsWith(GITDIR_PREFIX)) return null
+                    val gitDir = dir.toPath().resolve(content.removePrefix(GITDIR_PREFIX).trim()).normalize()
+                    val commonDirFile = gitDir.resolve("commondir")
+                    val commonDir = if (Files.isRegularFile(commonDirFile)) gitDir.resolve(Files.readString(commonDirFile).trim()).normalize() else gitDir
+                    return GitDirs(gitDir, commonDir)
+                }
+                dir = dir.parentFile
+            }
+        } catch (e: IOException) {
+            LOG.debug("Can't find repository of $workingDirectory", e)
+        }
+        return null
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(EncResultCache::class.java)
+        private const val DEFAULT_MAX_KB = 4096
+        private const val ENTRY_OVERHEAD = 256L
+        private const val GITDIR_PREFIX = "gitdir:"
+        private const val SYMBOLIC_REF_PREFIX = "ref:"
+        private val PER_WORKTREE_FILES = listOf("HEAD", "index", "logs/HEAD", "FETCH_HEAD")
+        private val SHARED_FILES = listOf("config", "packed-refs")
+
+        @JvmStatic
+        fun getInstance(project: Project): EncResultCache = project.getService(EncResultCache::class.java)
+    }
+}
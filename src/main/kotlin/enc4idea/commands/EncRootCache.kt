@@ -0,0 +1,75 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.github.suhasdotcom.tig.TigGitVcs
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.io.FileUtil
+import com.intellij.openapi.vfs.LocalFileSystem
+import com.intellij.openapi.vfs.VfsUtil
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.openapi.vfs.VirtualFileManager
+import com.intellij.openapi.vfs.newvfs.BulkFileListener
+import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent
+import git4idea.GitVcs
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Resolves working directories of [EncHandler]s to [VirtualFile]s without refreshing the VFS synchronously.
+ *
+ * A directory unknown to the VFS is scheduled for an asynchronous refresh and resolved as `null` until it appears.
+ * Entries are dropped when the directory is deleted, moved or renamed.
+ */
+@Service(Service.Level.PROJECT)
+class EncRootCache(private val project: Project) : Disposable {
+    private val myRoots = ConcurrentHashMap<String, VirtualFile>()
+
+    val vcs: GitVcs by lazy { TigGitVcs.getInstance(project) }
+
+    init {
+        project.messageBus.connect(this).subscribe(VirtualFileManager.VFS_CHANGES, object : BulkFileListener {
+            override fun after(events: List<VFileEvent>) {
+                if (myRoots.isNotEmpty() && events.any { isStructureChange(it) }) {
+                    dropInvalidRoots()
+                }
+            }
+        })
+    }
+
+    fun findRoot(directory: File): VirtualFile? {
+        val path = FileUtil.toSystemIndependentName(directory.path)
+        myRoots[path]?.let { return it }
+
+        val root = LocalFileSystem.getInstance().findFileByIoFile(directory)
+        if (root == null) {
+            VfsUtil.markDirtyAndRefresh(true, false, false, directory)
+            return null
+        }
+        myRoots[path] = root
+        return root
+    }
+
+    private fun dropInvalidRoots() {
+        myRoots.entries.removeIf { (path, root) -> !root.isValid || root.path != path }
+    }
+
+    override fun dispose() {
+        myRoots.clear()
+    }
+
+    companion object {
+        @JvmStatic
+        fun getInstance(project: Project): EncRootCache = project.getService(EncRootCache::class.java)
+
+        private fun isStructureChange(event: VFileEvent): Boolean {
+            return event is VFileDeleteEvent ||
+                    event is VFileMoveEvent ||
+                    event is VFilePropertyChangeEvent && event.isRename
+        }
+    }
+}
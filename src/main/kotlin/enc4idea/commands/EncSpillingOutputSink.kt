@@ -0,0 +1,189 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.util.io.FileUtil
+import com.intellij.openapi.util.registry.Registry
+import java.io.ByteArrayInputStream
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+import java.io.SequenceInputStream
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+
+/**
+ * Captures stdout of a command keeping at most `enc.output.memory.window.kb` on the heap,
+ * the rest is spilled to a memory-mapped temporary file.
+ *
+ * The total size is capped by `enc.output.max.mb`: output above it is dropped, [isTruncated] is set and
+ * [onLimitExceeded] is called once, e.g. to destroy the process.
+ * Stderr is kept in memory, bounded by the memory window as well; [isErrorTruncated] is set if some of it was dropped.
+ *
+ * Read the captured output with [openStream] after the process has terminated, and [close] the sink when done.
+ */
+class EncSpillingOutputSink @JvmOverloads constructor(
+        private val myMemoryWindow: Int = Registry.intValue("enc.output.memory.window.kb", DEFAULT_MEMORY_WINDOW_KB) * 1024,
+        private val myMaxSize: Long = Registry.intValue("enc.output.max.mb", DEFAULT_MAX_SIZE_MB) * 1024L * 1024L,
+        private val onLimitExceeded: () -> Unit = {}) : EncOutputConsumer, Closeable {
+    private var myMemory = ByteArray(minOf(myMemoryWindow, INITIAL_MEMORY_SIZE))
+    private var myMemorySize = 0
+    private var myError = ByteArray(0)
+    private var myErrorSize = 0
+
+    private var myFile: Path? = null
+    private var myChannel: FileChannel? = null
+    private var mySegment: MappedByteBuffer? = null
+    private var mySpilledSize = 0L
+
+    @Volatile
+    var isTruncated = false
+        private set
+
+    @Volatile
+    var isErrorTruncated = false
+        private set
+
+    val size: Long
+        get() = myMemorySize + mySpilledSize
+
+    override fun onOutput(buffer: ByteBuffer, isStderr: Boolean) {
+        if (isStderr) {
+            appendError(buffer)
+            return
+        }
+
+        val allowed = myMaxSize - size
+        if (buffer.remaining() > allowed) {
+            buffer.limit(buffer.position() + allowed.coerceAtLeast(0).toInt())
+            if (!isTruncated) {
+                isTruncated = true
+                LOG.warn("Command output exceeded ${myMaxSize / 1024 / 1024} MB and was truncated")
+                onLimitExceeded()
+            }
+        }
+
+        if (buffer.hasRemaining() && mySpilledSize == 0L && myMemorySize < myMemoryWindow) {
+            val length = minOf(buffer.remaining(), myMemoryWindow - myMemorySize)
+            ensureMemoryCapacity(myMemorySize + length)
+            buffer.get(myMemory, myMemorySize, length)
+            myMemorySize += length
+        }
+        while (buffer.hasRemaining()) {
+            spill(buffer)
+        }
+    }
+
+    private fun ensureMemoryCapacity(capacity: Int) {
+        if (capacity > myMemory.size) {
+            myMemory = myMemory.copyOf(minOf(myMemoryWindow, maxOf(capacity, myMemory.size * 2)))
+        }
+    }
+
+    private fun appendError(buffer: ByteBuffer) {
+        val length = minOf(buffer.remaining(), myMemoryWindow - myErrorSize)
+        if (length < buffer.remaining() && !isErrorTruncated) {
+            isErrorTruncated = true
+            LOG.warn("Command error output exceeded ${myMemoryWindow / 1024} KB and was truncated")
+        }
+        if (length <= 0) return
+        if (myErrorSize + length > myError.size) {
+            myError = myError.copyOf(minOf(myMemoryWindow, maxOf(myErrorSize + length, myError.size * 2)))
+        }
+        buffer.get(myError, myErrorSize, length)
+        myErrorSize += length
+    }
+
+    private fun spill(buffer: ByteBuffer) {
+        var segment = mySegment
+        if (segment == null || !segment.hasRemaining()) {
+            val channel = myChannel ?: openSpillFile()
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, mySpilledSize, SEGMENT_SIZE)
+            mySegment = segment
+        }
+        val length = minOf(buffer.remaining(), segment!!.remaining())
+        val slice = buffer.duplicate()
+        slice.limit(slice.position() + length)
+        segment.put(slice)
+        buffer.position(buffer.position() + length)
+        mySpilledSize += length
+    }
+
+    private fun openSpillFile(): FileChannel {
+        val file = FileUtil.createTempFile("enc-output", ".tmp", false).toPath()
+        myFile = file
+        val channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)
+        myChannel = channel
+        return channel
+    }
+
+    /**
+     * @return a stream over the whole captured stdout: the in-memory part followed by the spilled part
+     */
+    @Throws(IOException::class)
+    fun openStream(): InputStream {
+        val memory = ByteArrayInputStream(myMemory, 0, myMemorySize)
+        val file = myFile ?: return memory
+        val channel = FileChannel.open(file, StandardOpenOption.READ)
+        val spilled = Channels.newInputStream(channel)
+        return SequenceInputStream(memory, BoundedInputStream(spilled, mySpilledSize))
+    }
+
+    fun getErrorOutput(): ByteArray = myError.copyOf(myErrorSize)
+
+    override fun close() {
+        mySegment = null
+        try {
+            myChannel?.close()
+        } catch (e: IOException) {
+            LOG.debug(e)
+        }
+        myChannel = null
+        myFile?.let {
+            // a mapped file may not be deletable until the mapping is collected, it's deleted on exit then
+            try {
+                Files.deleteIfExists(it)
+            } catch (e: IOException) {
+                LOG.debug(e)
+                it.toFile().deleteOnExit()
+            }
+        }
+        myFile = null
+    }
+
+    /**
+     * Stops at the end of the written data, the mapped file may be longer because it grows by whole segments.
+     */
+    private class BoundedInputStream(private val myDelegate: InputStream, private var myRemaining: Long) : InputStream() {
+        override fun read(): Int {
+            if (myRemaining <= 0) return -1
+            val b = myDelegate.read()
+            if (b >= 0) myRemaining--
+            return b
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (myRemaining <= 0) return -1
+            val read = myDelegate.read(b, off, minOf(len.toLong(), myRemaining).toInt())
+            if (read > 0) myRemaining -= read
+            return read
+        }
+
+        override fun close() {
+            myDelegate.close()
+        }
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance(EncSpillingOutputSink::class.java)
+        private const val DEFAULT_MEMORY_WINDOW_KB = 1024
+        private const val DEFAULT_MAX_SIZE_MB = 1024
+        private const val INITIAL_MEMORY_SIZE = 8192
+        private const val SEGMENT_SIZE = 16L * 1024 * 1024
+    }
+}
@@ -0,0 +1,32 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.intellij.util.ConcurrencyUtil
+import com.intellij.util.concurrency.AppExecutorUtil
+import java.util.concurrent.CompletableFuture
+
+/**
+ * Runs blocking stream readers of enc processes on the shared application pool.
+ *
+ * Every reader occupies a pooled thread while its stream is open. Process pipes are not selectable channels in the JDK,
+ * so they can't be multiplexed on one thread, and virtual threads don't help either: a blocking read of a pipe
+ * holds their carrier thread, which the scheduler compensates for with an extra platform thread.
+ * The pool is unbounded on purpose: a reader waiting for a free thread would let its pipe fill up and stall the process.
+ */
+internal object EncStreamPumps {
+    /**
+     * @return future completed when the task finishes
+     */
+    fun start(name: String, task: Runnable): CompletableFuture<Unit> {
+        val future = CompletableFuture<Unit>()
+        AppExecutorUtil.getAppExecutorService().execute {
+            try {
+                ConcurrencyUtil.runUnderThreadName(name, task)
+                future.complete(Unit)
+            } catch (t: Throwable) {
+                future.completeExceptionally(t)
+            }
+        }
+        return future
+    }
+}
@@ -0,0 +1,135 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.intellij.execution.ExecutionException
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.openapi.vfs.VfsUtilCore
+import git4idea.commands.GitCommand
+import git4idea.config.GitExecutable
+import git4idea.config.GitExecutableManager
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+
+/**
+ * A handler which reads stdout and stderr on [EncStreamPumps] and passes raw output to an [EncOutputConsumer].
+ *
+ * If the consumer throws, the rest of the output is drained and dropped, so that the process doesn't block on a full pipe,
+ * the failure is available as [outputError], and termination is reported as usual.
+ */
+open class EncStreamingHandler(project: Project?,
+                               directory: File,
+                               executable: GitExecutable,
+                               command: GitCommand,
+                               configParameters: List<String?>,
+                               private val myConsumer: EncOutputConsumer)
+    : EncHandler(project, directory, executable, command, configParameters) {
+    private var myStdoutPump: CompletableFuture<Unit>? = null
+    private var myStderrPump: CompletableFuture<Unit>? = null
+
+    /**
+     * The first exception thrown by the consumer, if any
+     */
+    @Volatile
+    var outputError: Throwable? = null
+        private set
+
+    constructor(project: Project?, directory: File, command: GitCommand, consumer: EncOutputConsumer)
+            : this(project, directory, GitExecutableManager.getInstance().getExecutable(project), command, emptyList(), consumer)
+
+    constructor(project: Project, vcsRoot: VirtualFile, command: GitCommand, consumer: EncOutputConsumer)
+            : this(project, VfsUtilCore.virtualToIoFile(vcsRoot), command, consumer)
+
+    @Throws(ExecutionException::class)
+    override fun startProcess(): Process? {
+        return createProcess()
+    }
+
+    override fun startHandlingStreams() {
+        val process = myProcess ?: return
+        myStdoutPump = EncStreamPumps.start("enc $command stdout", Runnable { pump(process.inputStream, false) })
+        myStderrPump = EncStreamPumps.start("enc $command stderr", Runnable { pump(process.errorStream, true) })
+    }
+
+    private fun pump(stream: InputStream, isStderr: Boolean) {
+        val bytes = BUFFER_POOL.poll() ?: ByteArray(BUFFER_SIZE)
+        val buffer = ByteBuffer.wrap(bytes)
+        var consumerFailed = false
+        try {
+            stream.use {
+                while (true) {
+                    val read = it.read(bytes)
+                    if (read < 0) break
+                    if (read == 0 || consumerFailed) continue
+                    notifyOutputReceived(read)
+                    buffer.clear().limit(read)
+                    try {
+                        myConsumer.onOutput(buffer, isStderr)
+                    } catch (t: Throwable) {
+                        recordOutputError(t)
+                        consumerFailed = true
+                    }
+                }
+            }
+        } catch (e: IOException) {
+            LOG.debug("Stream of $command closed", e)
+        } finally {
+            BUFFER_POOL.offer(bytes)
+            try {
+                myConsumer.onOutputEnd(isStderr)
+            } catch (t: Throwable) {
+                recordOutputError(t)
+            }
+        }
+    }
+
+    private fun recordOutputError(t: Throwable) {
+        val error = if (t is CompletionException) t.cause ?: t else t
+        synchronized(this) {
+            if (outputError == null) outputError = error
+        }
+        LOG.warn("Output consumer of enc $command failed", error)
+    }
+
+    override fun awaitStreamsAsync(): CompletableFuture<*> {
+        val pumps = listOfNotNull(myStdoutPump, myStderrPump).map { pump ->
+            pump.exceptionally { recordOutputError(it) }
+        }
+        return CompletableFuture.allOf(*pumps.toTypedArray())
+    }
+
+    private fun joinPump(pump: CompletableFuture<Unit>?) {
+        try {
+            pump?.join()
+        } catch (e: CompletionException) {
+            recordOutputError(e)
+        }
+    }
+
+    override fun waitForProcess() {
+        val process = myProcess ?: return
+        var exitCode: Int
+        try {
+            exitCode = process.waitFor()
+            joinPump(myStdoutPump)
+            joinPump(myStderrPump)
+        } catch (e: InterruptedException) {
+            process.destroy()
+            Thread.currentThread().interrupt()
+            exitCode = -1
+        }
+        @Suppress("DEPRECATION")
+        this.exitCode = exitCode
+        listeners().processTerminated(exitCode)
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 8192
+        private val BUFFER_POOL = ArrayBlockingQueue<ByteArray>(64)
+    }
+}
@@ -7,6 +7,11 @@ import com.intellij.execution.wsl.WSLDistribution;
 import com.intellij.execution.wsl.WslDistributionManager;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
 import com.intellij.openapi.util.SystemInfo;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.registry.Registry;
@@ -66,7 +71,10 @@ public class EncExecutableDetector {
   private final ScheduledExecutorService myWslExecutor =
     AppExecutorUtil.createBoundedScheduledExecutorService("EncExecutableDetector WSL thread", 1);
 
-  private final @NotNull Object DETECTED_EXECUTABLE_LOCK = new Object();
+  private final @NotNull Map<Object, Detection> myRunningDetections = new ConcurrentHashMap<>();
+  private final @NotNull Object myPublishLock = new Object();
+  // incremented by clear(), results of detections started before are dropped
+  private volatile long myGeneration;
   private final @NotNull AtomicReference<DetectedPath> myEnvExecutable = new AtomicReference<>();
   private final @NotNull AtomicReference<DetectedPath> mySystemExecutable = new AtomicReference<>();
   private final @NotNull Map<WSLDistribution, DetectedPath> myWslExecutables = new ConcurrentHashMap<>();
@@ -97,26 +105,39 @@ public class EncExecutableDetector {
                                     () -> detectExecutable(detectors));
   }
 
+  /**
+   * Runs the detectors which haven't completed yet concurrently and takes the first successful one in the priority order.
+   * Detections still running when the result is known are cancelled.
+   * Each detector runs at most once at a time: concurrent callers share the running detection.
+   */
   @RequiresBackgroundThread
   private @NotNull String detectExecutable(@NotNull List<Detector> detectors) {
-    String path = null;
+    List<Detection> detections = new ArrayList<>(detectors.size());
     boolean fireEvent = false;
-    synchronized (DETECTED_EXECUTABLE_LOCK) {
-      for (Detector detector : detectors) {
-        DetectedPath detectedPath = detector.getPath();
-        if (detectedPath == null) {
-          detector.runDetection();
-          fireEvent = true;
-
-          detectedPath = detector.getPath();
-        }
+    for (Detector detector : detectors) {
+      Detection detection = null;
+      if (detector.getPath() == null) {
+        detection = startDetection(detector);
+        fireEvent = true;
+      }
+      detections.add(detection);
+    }
 
+    String path = null;
+    try {
+      for (int i = 0; i < detectors.size(); i++) {
+        DetectedPath detectedPath = awaitDetection(detectors.get(i), detections.get(i));
         if (detectedPath != null && detectedPath.path != null) {
           path = detectedPath.path;
           break;
         }
       }
     }
+    finally {
+      for (Detection detection : detections) {
+        if (detection != null) detection.cancel();
+      }
+    }
 
     if (fireEvent) {
       ApplicationManager.getApplication().getMessageBus().syncPublisher(GitExecutableManager.TOPIC).executableChanged();
@@ -126,14 +147,74 @@ public class EncExecutableDetector {
     return getDefaultExecutable();
   }
 
+  private @NotNull Detection startDetection(@NotNull Detector detector) {
+    Detection detection = new Detection();
+    Detection running = myRunningDetections.putIfAbsent(detector.getKey(), detection);
+    if (running != null) return running;
+
+    long generation = myGeneration;
+    AppExecutorUtil.getAppExecutorService().execute(() -> {
+      try {
+        if (detection.future.isDone()) return;
+        ProgressManager.getInstance().executeProcessUnderProgress(() -> detector.runDetection(generation), detection.indicator);
+        detection.future.complete(null);
+      }
+      catch (ProcessCanceledException e) {
+        detection.future.cancel(false);
+      }
+      catch (Throwable t) {
+        detection.future.completeExceptionally(t);
+      }
+      finally {
+        myRunningDetections.remove(detector.getKey(), detection);
+        detection.finished.complete(null);
+      }
+    });
+    return detection;
+  }
+
+  private @Nullable DetectedPath awaitDetection(@NotNull Detector detector, @Nullable Detection detection) {
+    while (true) {
+      DetectedPath path = detector.getPath();
+      if (path != null) return path;
+      if (detection == null) detection = startDetection(detector);
+      try {
+        ProgressIndicatorUtils.awaitWithCheckCanceled(detection.future);
+        DetectedPath result = detector.getPath();
+        if (result != null) return result;
+        // the result was dropped by clear(), detect again
+        detection = null;
+      }
+      catch (CancellationException e) {
+        // cancelled by another caller which has got a result from a detector of higher priority:
+        // wait until the cancelled worker is gone, so that a new detection can be started
+        ProgressIndicatorUtils.awaitWithCheckCanceled(detection.finished);
+        detection = null;
+      }
+    }
+  }
+
+  /**
+   * Publish a detection result unless {@link #clear()} has been called since the detection started.
+   */
+  private void publish(long generation, @NotNull Runnable update) {
+    synchronized (myPublishLock) {
+      if (myGeneration == generation) update.run();
+    }
+  }
+
   @RequiresBackgroundThread
   public void clear() {
-    synchronized (DETECTED_EXECUTABLE_LOCK) {
+    synchronized (myPublishLock) {
+      myGeneration++;
       myEnvExecutable.set(null);
       mySystemExecutable.set(null);
       myWslExecutables.clear();
       myWslDistributionsProcessed = false;
     }
+    for (Detection detection : myRunningDetections.values()) {
+      detection.cancel();
+    }
     ApplicationManager.getApplication().getMessageBus().syncPublisher(GitExecutableManager.TOPIC).executableChanged();
   }
 
@@ -175,7 +256,26 @@ public class EncExecutableDetector {
      */
     @Nullable DetectedPath getPath();
 
-    void runDetection();
+    /**
+     * Should check for cancellation and publish its result with {@link #publish}.
+     */
+    void runDetection(long generation);
+
+    /**
+     * @return detectors with equal keys detect the same thing and don't run concurrently
+     */
+    @NotNull Object getKey();
+  }
+
+  private static final class Detection {
+    private final @NotNull CompletableFuture<Void> future = new CompletableFuture<>();
+    private final @NotNull CompletableFuture<Void> finished = new CompletableFuture<>(); // the worker has exited
+    private final @NotNull ProgressIndicator indicator = new EmptyProgressIndicator();
+
+    void cancel() {
+      indicator.cancel();
+      future.cancel(false);
+    }
   }
 
   private class EnvDetector implements Detector {
@@ -185,11 +285,17 @@ public class EncExecutableDetector {
     }
 
     @Override
-    public void runDetection() {
+    public void runDetection(long generation) {
       String executableName = SystemInfo.isWindows ? WIN_EXECUTABLE : UNIX_EXECUTABLE;
       File executableFromEnv = PathEnvironmentVariableUtil.findInPath(executableName, getPathEnv(), null);
       String path = executableFromEnv != null ? executableFromEnv.getAbsolutePath() : null;
-      myEnvExecutable.set(new DetectedPath(path));
+      ProgressManager.checkCanceled();
+      publish(generation, () -> myEnvExecutable.set(new DetectedPath(path)));
+    }
+
+    @Override
+    public @NotNull Object getKey() {
+      return EnvDetector.class;
     }
   }
 
@@ -200,9 +306,15 @@ public class EncExecutableDetector {
     }
 
     @Override
-    public void runDetection() {
+    public void runDetection(long generation) {
       String executable = SystemInfo.isWindows ? detectForWindows() : detectForUnix();
-      mySystemExecutable.set(new DetectedPath(executable));
+      ProgressManager.checkCanceled();
+      publish(generation, () -> mySystemExecutable.set(new DetectedPath(executable)));
+    }
+
+    @Override
+    public @NotNull Object getKey() {
+      return SystemPathDetector.class;
     }
   }
 
@@ -219,9 +331,14 @@ public class EncExecutableDetector {
     }
 
     @Override
-    public void runDetection() {
+    public void runDetection(long generation) {
       String result = checkWslDistributionSafe(myDistribution);
-      myWslExecutables.put(myDistribution, new DetectedPath(result));
+      publish(generation, () -> myWslExecutables.put(myDistribution, new DetectedPath(result)));
+    }
+
+    @Override
+    public @NotNull Object getKey() {
+      return myDistribution;
     }
   }
 
@@ -238,13 +355,18 @@ public class EncExecutableDetector {
     }
 
     @Override
-    public void runDetection() {
+    public void runDetection(long generation) {
       List<WSLDistribution> distributions = WslDistributionManager.getInstance().getInstalledDistributions();
       for (WSLDistribution distribution : distributions) {
         String result = checkWslDistributionSafe(distribution);
-        myWslExecutables.put(distribution, new DetectedPath(result));
+        publish(generation, () -> myWslExecutables.put(distribution, new DetectedPath(result)));
       }
-      myWslDistributionsProcessed = true;
+      publish(generation, () -> myWslDistributionsProcessed = true);
+    }
+
+    @Override
+    public @NotNull Object getKey() {
+      return GlobalWslDetector.class;
     }
   }
 
@@ -265,6 +387,7 @@ public class EncExecutableDetector {
 
   private static @Nullable String detectForUnix() {
     for (String p : UNIX_PATHS) {
+      ProgressManager.checkCanceled();
       File f = new File(p, UNIX_EXECUTABLE);
       if (f.exists()) {
         return f.getPath();
@@ -305,6 +428,7 @@ public class EncExecutableDetector {
     distrs.sort(Collections.reverseOrder(new VersionDirsComparator()));
 
     for (File distr : distrs) {
+      ProgressManager.checkCanceled();
       String exec = checkDistributive(distr);
       if (exec != null) {
         return exec;
@@ -341,9 +465,23 @@ public class EncExecutableDetector {
    * Guard against potential lock in OS code while accessing paths under WSL distro
    */
   private String checkWslDistributionSafe(@NotNull WSLDistribution distribution) {
+    ProgressManager.checkCanceled();
     Future<String> future = myWslExecutor.submit(() -> checkWslDistribution(distribution));
+    long deadline = System.currentTimeMillis() + WSL_DETECTION_TIMEOUT_MS;
     try {
-      return future.get(WSL_DETECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      while (true) {
+        ProgressManager.checkCanceled();
+        try {
+          return future.get(50, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+          if (System.currentTimeMillis() > deadline) throw e;
+        }
+      }
+    }
+    catch (ProcessCanceledException e) {
+      future.cancel(true);
+      throw e;
     }
     catch (InterruptedException | ExecutionException | TimeoutException e) {
       LOG.warn(String.format("WSL executable detection aborted for %s", distribution), e);
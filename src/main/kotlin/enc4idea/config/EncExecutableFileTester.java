@@ -3,13 +3,19 @@ package enc4idea.config;
 
 import com.intellij.execution.configurations.PathEnvironmentVariableUtil;
 import com.intellij.execution.wsl.WSLDistribution;
+import com.intellij.openapi.Disposable;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.Cancellation;
 import com.intellij.openapi.progress.EmptyProgressIndicator;
 import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.util.AbstractProgressIndicatorExBase;
 import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
-import com.intellij.openapi.util.Ref;
+import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.wm.ex.ProgressIndicatorEx;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.concurrency.AppJavaExecutorUtil;
 import git4idea.commands.Git;
 import git4idea.commands.GitCommand;
@@ -20,6 +26,9 @@ import git4idea.config.GitExecutableDetector;
 import git4idea.config.GitVersion;
 import git4idea.config.GitVersionIdentificationException;
 import git4idea.i18n.GitBundle;
+import kotlin.Unit;
+import kotlinx.coroutines.DisposableHandle;
+import kotlinx.coroutines.Job;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -30,61 +39,107 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeoutException;
 
 class EncExecutableFileTester {
   private static final Logger LOG = Logger.getInstance(EncExecutableFileTester.class);
   private static final int FILE_TEST_TIMEOUT_MS = 30000;
 
-  private final ReentrantLock LOCK = new ReentrantLock();
   private final @NotNull ConcurrentMap<GitExecutable, TestResult> myTestMap = new ConcurrentHashMap<>();
+  private final @NotNull EncExecutableVersionStore myVersionStore = new EncExecutableVersionStore();
+  private final @NotNull EncExecutableFileWatcher myFileWatcher = new EncExecutableFileWatcher();
+  // probes in progress: concurrent callers for the same executable share one, different executables are probed in parallel
+  private final @NotNull ConcurrentMap<GitExecutable, CompletableFuture<TestResult>> myProbes = new ConcurrentHashMap<>();
+
+  EncExecutableFileTester(@NotNull Disposable parentDisposable) {
+    Disposer.register(parentDisposable, myFileWatcher);
+  }
 
   final @NotNull TestResult getResultFor(@NotNull GitExecutable executable) {
-    return ProgressIndicatorUtils.computeWithLockAndCheckingCanceled(LOCK, 50, TimeUnit.MILLISECONDS, () -> {
-      TestResult result = myTestMap.get(executable);
-      long currentLastModificationDate = 0L;
+    while (true) {
+      TestResult cached = getUpToDateResult(executable);
+      if (cached != null) return cached;
 
-      try {
-        currentLastModificationDate = getModificationTime(executable);
-        if (result == null || result.getFileLastModifiedTimestamp() != currentLastModificationDate) {
-          result = new TestResult(testOrAbort(executable), currentLastModificationDate);
-          myTestMap.put(executable, result);
+      CompletableFuture<TestResult> probe = new CompletableFuture<>();
+      CompletableFuture<TestResult> inFlight = myProbes.putIfAbsent(executable, probe);
+      if (inFlight == null) {
+        try {
+          TestResult result = probe(executable);
+          probe.complete(result);
+          return result;
         }
+        finally {
+          // if the probe was cancelled, waiting callers start their own
+          probe.cancel(false);
+          myProbes.remove(executable, probe);
+        }
+      }
+
+      try {
+        return ProgressIndicatorUtils.awaitWithCheckCanceled(inFlight);
       }
-      catch (ProcessCanceledException pce) {
-        throw pce;
+      catch (CancellationException ignore) {
       }
-      catch (Exception e) {
-        LOG.warn(e);
+    }
+  }
+
+  private @Nullable TestResult getUpToDateResult(@NotNull GitExecutable executable) {
+    TestResult result = myTestMap.get(executable);
+    if (result == null) return null;
+    try {
+      return result.getFileLastModifiedTimestamp() == getModificationTime(executable) ? result : null;
+    }
+    catch (IOException e) {
+      return null;
+    }
+  }
 
-        result = new TestResult(e, currentLastModificationDate);
+  private @NotNull TestResult probe(@NotNull GitExecutable executable) {
+    TestResult result = myTestMap.get(executable);
+    long currentLastModificationDate = 0L;
+
+    try {
+      currentLastModificationDate = getModificationTime(executable);
+      if (result == null || result.getFileLastModifiedTimestamp() != currentLastModificationDate) {
+        result = new TestResult(identifyVersion(executable), currentLastModificationDate);
         myTestMap.put(executable, result);
       }
+    }
+    catch (ProcessCanceledException pce) {
+      throw pce;
+    }
+    catch (Exception e) {
+      LOG.warn(e);
 
-      return result;
-    });
+      result = new TestResult(e, currentLastModificationDate);
+      myTestMap.put(executable, result);
+    }
+
+    return result;
   }
 
-  private static long getModificationTime(@NotNull GitExecutable executable) throws IOException {
+  private long getModificationTime(@NotNull GitExecutable executable) throws IOException {
     if (executable instanceof GitExecutable.Unknown) {
       return 0;
     }
 
     if (executable instanceof GitExecutable.Local) {
-      String filePath = executable.getExePath();
-      if (!filePath.contains(File.separator)) {
-        File exeFile = PathEnvironmentVariableUtil.findInPath(filePath);
-        if (exeFile != null) filePath = exeFile.getPath();
-      }
+      Long knownModificationTime = myFileWatcher.getModificationTime(executable);
+      if (knownModificationTime != null) return knownModificationTime;
 
-      Path executablePath = Paths.get(filePath);
+      Path executablePath = getLocalExecutablePath(executable);
+      List<Path> dependencyPaths = GitExecutableDetector.getDependencyPaths(executablePath);
+      EncExecutableFileWatcher.Registration registration = myFileWatcher.watch(executablePath, dependencyPaths);
       long modificationTime = getModificationTime(executablePath);
 
-      for (Path dependencyPath : GitExecutableDetector.getDependencyPaths(executablePath)) {
+      for (Path dependencyPath : dependencyPaths) {
         try {
           long depTime = getModificationTime(dependencyPath);
           modificationTime = Math.max(modificationTime, depTime);
@@ -93,6 +148,7 @@ class EncExecutableFileTester {
         }
       }
 
+      myFileWatcher.remember(executable, modificationTime, registration);
       return modificationTime;
     }
 
@@ -104,6 +160,37 @@ class EncExecutableFileTester {
     return 0;
   }
 
+  private static @NotNull Path getLocalExecutablePath(@NotNull GitExecutable executable) {
+    String filePath = executable.getExePath();
+    if (!filePath.contains(File.separator)) {
+      File exeFile = PathEnvironmentVariableUtil.findInPath(filePath);
+      if (exeFile != null) filePath = exeFile.getPath();
+    }
+    return Paths.get(filePath);
+  }
+
+  /**
+   * Local executables are identified from {@link EncExecutableVersionStore} if they haven't changed since the last run,
+   * the version command is run otherwise.
+   */
+  private @NotNull GitVersion identifyVersion(@NotNull GitExecutable executable) throws Exception {
+    if (!(executable instanceof GitExecutable.Local)) {
+      return testOrAbort(executable);
+    }
+
+    Path executablePath = getLocalExecutablePath(executable);
+    List<Path> dependencyPaths = GitExecutableDetector.getDependencyPaths(executablePath);
+    GitVersion storedVersion = myVersionStore.get(executable, executablePath, dependencyPaths);
+    if (storedVersion != null) {
+      LOG.debug("Git version for " + executable + " restored: " + storedVersion);
+      return storedVersion;
+    }
+
+    GitVersion version = testOrAbort(executable);
+    myVersionStore.put(executable, executablePath, dependencyPaths, version);
+    return version;
+  }
+
   private static long getModificationTime(@NotNull Path filePath) throws IOException {
     return Files.getLastModifiedTime(filePath).toMillis();
   }
@@ -129,38 +216,86 @@ class EncExecutableFileTester {
 
   private static @Nullable GitVersion runTestWithTimeout(@NotNull GitExecutable executable) throws Exception {
     EmptyProgressIndicator indicator = new EmptyProgressIndicator();
-    Ref<Exception> exceptionRef = new Ref<>();
-    Ref<GitVersion> resultRef = new Ref<>();
-
-    Semaphore semaphore = new Semaphore(0);
+    CompletableFuture<GitVersion> future = new CompletableFuture<>();
 
     AppJavaExecutorUtil.executeOnPooledIoThread(() -> {
       ProgressManager.getInstance().executeProcessUnderProgress(() -> {
         try {
-          resultRef.set(testExecutable(executable));
+          future.complete(testExecutable(executable));
         }
-        catch (Exception e) {
-          exceptionRef.set(e);
-        }
-        finally {
-          semaphore.release();
+        catch (Throwable e) {
+          future.completeExceptionally(e);
         }
       }, indicator);
     });
+    ScheduledFuture<?> deadline = AppExecutorUtil.getAppScheduledExecutorService()
+      .schedule(() -> future.complete(null), FILE_TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS); // null means timeout
 
     try {
-      long start = System.currentTimeMillis();
+      return awaitCancellably(future);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) throw (Exception)cause;
+      throw e;
+    }
+    finally {
+      deadline.cancel(false);
+      indicator.cancel();
+    }
+  }
+
+  /**
+   * Waits for the future without polling if the caller can notify about cancellation:
+   * through the state delegates of its indicator, or through its coroutine job if it has no indicator.
+   * A caller with another kind of indicator is polled for cancellation every 50 ms.
+   */
+  private static <T> T awaitCancellably(@NotNull CompletableFuture<T> future) throws ExecutionException, InterruptedException {
+    ProgressIndicator callerIndicator = ProgressManager.getGlobalProgressIndicator();
+    Job callerJob = callerIndicator == null ? Cancellation.currentJob() : null;
+    Runnable unsubscribe;
+    if (callerIndicator instanceof AbstractProgressIndicatorExBase indicatorEx) {
+      ProgressIndicatorEx delegate = new AbstractProgressIndicatorExBase() {
+        @Override
+        public void cancel() {
+          super.cancel();
+          future.cancel(false);
+        }
+      };
+      indicatorEx.addStateDelegate(delegate);
+      unsubscribe = () -> indicatorEx.removeStateDelegate(delegate);
+      if (callerIndicator.isCanceled()) future.cancel(false);
+    }
+    else if (callerJob != null) {
+      DisposableHandle handle = callerJob.invokeOnCompletion(cause -> {
+        future.cancel(false);
+        return Unit.INSTANCE;
+      });
+      unsubscribe = handle::dispose;
+    }
+    else if (callerIndicator != null) {
       while (true) {
-        ProgressManager.checkCanceled();
-        if (semaphore.tryAcquire(50, TimeUnit.MILLISECONDS)) break;
-        if (System.currentTimeMillis() - start > FILE_TEST_TIMEOUT_MS) break;
+        callerIndicator.checkCanceled();
+        try {
+          return future.get(50, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException ignored) {
+        }
       }
-      if (!resultRef.isNull()) return resultRef.get();
-      if (!exceptionRef.isNull()) throw exceptionRef.get();
-      return null; // timeout
+    }
+    else {
+      return future.get(); // nothing can cancel the caller
+    }
+
+    try {
+      return future.get();
+    }
+    catch (CancellationException e) {
+      ProgressManager.checkCanceled();
+      throw new ProcessCanceledException(e);
     }
     finally {
-      indicator.cancel();
+      unsubscribe.run();
     }
   }
 
@@ -170,10 +305,14 @@ class EncExecutableFileTester {
 
   public void dropCache(@NotNull GitExecutable executable) {
     myTestMap.remove(executable);
+    myFileWatcher.forget(executable);
+    myVersionStore.remove(executable);
   }
 
   public void dropCache() {
     myTestMap.clear();
+    myFileWatcher.forgetAll();
+    myVersionStore.clear();
   }
 
   private static @NotNull GitVersion testExecutable(@NotNull GitExecutable executable) throws Exception {
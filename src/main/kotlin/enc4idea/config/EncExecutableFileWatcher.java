@@ -0,0 +1,198 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.config;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.registry.Registry;
+import git4idea.config.GitExecutable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers modification times of local executables (with PATH resolved and dependencies included)
+ * until a file in their directories changes, so that checking whether a cached version is up to date is a map lookup.
+ * <p>
+ * Changes are reported by a {@link WatchService}. Since it may miss changes, e.g. on network file systems,
+ * a remembered time is also dropped after {@code enc.executable.stamp.max.staleness.ms}.
+ * Where the platform has no native watch service, e.g. on macOS, nothing is watched and the staleness limit alone applies:
+ * the JDK fallback would rescan every watched directory in the background.
+ * <p>
+ * The watch service and its thread are closed on dispose.
+ */
+final class EncExecutableFileWatcher implements Disposable {
+  private static final Logger LOG = Logger.getInstance(EncExecutableFileWatcher.class);
+
+  private final @NotNull ConcurrentMap<GitExecutable, Stamp> myStamps = new ConcurrentHashMap<>();
+  private final @NotNull ConcurrentMap<Path, WatchKey> myWatchedDirs = new ConcurrentHashMap<>();
+  private final @NotNull AtomicLong myGeneration = new AtomicLong(); // incremented on every change event
+  private @Nullable WatchService myWatchService; // created lazily, guarded by this
+  private boolean myWatchServiceUnavailable; // guarded by this
+  private boolean myDisposed; // guarded by this
+
+  /**
+   * @return the remembered modification time, or null if it has to be computed again
+   */
+  @Nullable
+  Long getModificationTime(@NotNull GitExecutable executable) {
+    Stamp stamp = myStamps.get(executable);
+    if (stamp == null) return null;
+    if (System.currentTimeMillis() - stamp.computedAt > Registry.intValue("enc.executable.stamp.max.staleness.ms", 60000)) {
+      myStamps.remove(executable, stamp);
+      return null;
+    }
+    return stamp.modificationTime;
+  }
+
+  /**
+   * Start watching the directories of the executable and its dependencies.
+   * Should be called before their modification time is computed, so that no change is missed in between.
+   */
+  @NotNull
+  Registration watch(@NotNull Path executablePath, @NotNull List<Path> dependencyPaths) {
+    long generation = myGeneration.get();
+    Set<Path> directories = new HashSet<>();
+    addDirectory(directories, executablePath);
+    for (Path dependencyPath : dependencyPaths) {
+      addDirectory(directories, dependencyPath);
+    }
+    for (Path directory : directories) {
+      watch(directory);
+    }
+    return new Registration(directories, generation);
+  }
+
+  void remember(@NotNull GitExecutable executable, long modificationTime, @NotNull Registration registration) {
+    myStamps.put(executable, new Stamp(modificationTime, System.currentTimeMillis(), registration.directories));
+    // a change reported while the time was computed might have been missed by it
+    if (myGeneration.get() != registration.generation) {
+      myStamps.remove(executable);
+    }
+  }
+
+  void forget(@NotNull GitExecutable executable) {
+    myStamps.remove(executable);
+  }
+
+  void forgetAll() {
+    myStamps.clear();
+  }
+
+  private static void addDirectory(@NotNull Set<Path> directories, @NotNull Path path) {
+    Path directory = path.toAbsolutePath().getParent();
+    if (directory != null) directories.add(directory);
+  }
+
+  private void watch(@NotNull Path directory) {
+    if (myWatchedDirs.containsKey(directory)) return;
+    WatchService watchService = getWatchService();
+    if (watchService == null) return;
+    try {
+      WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+      myWatchedDirs.put(directory, key);
+    }
+    catch (IOException | UnsupportedOperationException | ClosedWatchServiceException e) {
+      // not watchable, e.g. doesn't exist: the stamp expires by staleness only
+      LOG.debug("Can't watch " + directory, e);
+    }
+  }
+
+  private synchronized @Nullable WatchService getWatchService() {
+    if (myWatchService == null && !myWatchServiceUnavailable && !myDisposed) {
+      try {
+        WatchService watchService = FileSystems.getDefault().newWatchService();
+        if (isPolling(watchService)) {
+          LOG.info("Executable changes won't be watched: no native watch service");
+          watchService.close();
+          myWatchServiceUnavailable = true;
+          return null;
+        }
+        myWatchService = watchService;
+        Thread thread = new Thread(() -> processEvents(watchService), "Enc executable file watcher");
+        thread.setDaemon(true);
+        thread.start();
+      }
+      catch (IOException | UnsupportedOperationException e) {
+        LOG.warn("Executable changes won't be watched", e);
+        myWatchServiceUnavailable = true;
+      }
+    }
+    return myWatchService;
+  }
+
+  private static boolean isPolling(@NotNull WatchService watchService) {
+    return watchService.getClass().getName().equals("sun.nio.fs.PollingWatchService");
+  }
+
+  @Override
+  public void dispose() {
+    WatchService watchService;
+    synchronized (this) {
+      myDisposed = true;
+      watchService = myWatchService;
+      myWatchService = null;
+    }
+    if (watchService != null) {
+      try {
+        watchService.close(); // stops the event thread
+      }
+      catch (IOException e) {
+        LOG.debug("Can't close executable file watcher", e);
+      }
+    }
+    myWatchedDirs.clear();
+    myStamps.clear();
+  }
+
+  private void processEvents(@NotNull WatchService watchService) {
+    try {
+      while (true) {
+        WatchKey key = watchService.take();
+        Path directory = (Path)key.watchable();
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW) overflow = true;
+        }
+        myGeneration.incrementAndGet();
+        if (overflow) {
+          myStamps.clear();
+        }
+        else {
+          invalidate(directory);
+        }
+        if (!key.reset()) {
+          myWatchedDirs.remove(directory, key);
+          invalidate(directory);
+        }
+      }
+    }
+    catch (InterruptedException | ClosedWatchServiceException e) {
+      LOG.debug("Executable file watcher stopped", e);
+    }
+  }
+
+  private void invalidate(@NotNull Path directory) {
+    myStamps.values().removeIf(stamp -> stamp.directories.contains(directory));
+  }
+
+  record Registration(@NotNull Set<Path> directories, long generation) {
+  }
+
+  private record Stamp(long modificationTime, long computedAt, @NotNull Set<Path> directories) {
+  }
+}
@@ -4,6 +4,7 @@ package enc4idea.config;
 import com.intellij.execution.wsl.WSLDistribution;
 import com.intellij.execution.wsl.WSLUtil;
 import com.intellij.execution.wsl.WslPath;
+import com.intellij.openapi.Disposable;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.application.Experiments;
 import com.intellij.openapi.diagnostic.Logger;
@@ -31,7 +32,7 @@ import static enc4idea.config.EncExecutableProblemHandlersKt.showUnsupportedVers
  * Manager for "current git executable".
  * Allows to get a path to git executable and executable version.
  */
-public class EncExecutableManager {
+public class EncExecutableManager implements Disposable {
   public static EncExecutableManager getInstance() {
     return ApplicationManager.getApplication().getService(EncExecutableManager.class);
   }
@@ -45,7 +46,12 @@ public class EncExecutableManager {
   public static final Topic<GitExecutableListener> TOPIC = new Topic<>(GitExecutableListener.class, Topic.BroadcastDirection.NONE);
 
   public EncExecutableManager() {
-    myVersionCache = new EncExecutableFileTester();
+    myVersionCache = new EncExecutableFileTester(this);
+  }
+
+  @Override
+  public void dispose() {
+    // only the parent of the executable file watcher registered by myVersionCache, which is disposed with it
   }
 
 
@@ -0,0 +1,183 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.config;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import git4idea.config.GitExecutable;
+import git4idea.config.GitVersion;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Versions of local executables persisted between IDE restarts, so that the version command doesn't have to be run
+ * before the first VCS operation.
+ * <p>
+ * A version is stored together with a fingerprint of the executable and its dependencies (size, modification time and file key,
+ * i.e. the inode where available). It's reused only while the fingerprint matches, which takes a few stat calls to check.
+ */
+final class EncExecutableVersionStore {
+  private static final Logger LOG = Logger.getInstance(EncExecutableVersionStore.class);
+  private static final int FORMAT_VERSION = 1;
+
+  private final @NotNull Path myFile;
+  private @Nullable Map<String, Entry> myEntries; // loaded lazily, guarded by this
+
+  EncExecutableVersionStore() {
+    this(Path.of(PathManager.getSystemPath(), "enc", "executable-versions.dat"));
+  }
+
+  EncExecutableVersionStore(@NotNull Path file) {
+    myFile = file;
+  }
+
+  /**
+   * @return the stored version if the executable and its dependencies haven't changed since it was stored
+   */
+  @Nullable
+  GitVersion get(@NotNull GitExecutable executable, @NotNull Path executablePath, @NotNull List<Path> dependencyPaths) {
+    Entry entry;
+    synchronized (this) {
+      entry = getEntries().get(getKey(executable));
+    }
+    if (entry == null) return null;
+    if (!entry.stamps.equals(computeStamps(executablePath, dependencyPaths))) {
+      LOG.debug("Stored version of " + executable + " is outdated");
+      return null;
+    }
+    return entry.version;
+  }
+
+  void put(@NotNull GitExecutable executable, @NotNull Path executablePath, @NotNull List<Path> dependencyPaths,
+           @NotNull GitVersion version) {
+    Entry entry = new Entry(version, computeStamps(executablePath, dependencyPaths));
+    synchronized (this) {
+      Map<String, Entry> entries = getEntries();
+      if (entry.equals(entries.get(getKey(executable)))) return;
+      entries.put(getKey(executable), entry);
+      save(entries);
+    }
+  }
+
+  synchronized void remove(@NotNull GitExecutable executable) {
+    if (getEntries().remove(getKey(executable)) != null) {
+      save(getEntries());
+    }
+  }
+
+  synchronized void clear() {
+    myEntries = new HashMap<>();
+    try {
+      Files.deleteIfExists(myFile);
+    }
+    catch (IOException e) {
+      LOG.warn("Couldn't delete " + myFile, e);
+    }
+  }
+
+  private static @NotNull String getKey(@NotNull GitExecutable executable) {
+    return executable.getId() + "\n" + executable.getExePath();
+  }
+
+  private static @NotNull List<FileStamp> computeStamps(@NotNull Path executablePath, @NotNull List<Path> dependencyPaths) {
+    List<FileStamp> stamps = new ArrayList<>(dependencyPaths.size() + 1);
+    addStamp(stamps, executablePath);
+    for (Path dependencyPath : dependencyPaths) {
+      addStamp(stamps, dependencyPath);
+    }
+    return stamps;
+  }
+
+  private static void addStamp(@NotNull List<FileStamp> stamps, @NotNull Path path) {
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      Object fileKey = attributes.fileKey();
+      stamps.add(new FileStamp(path.toString(), attributes.size(), attributes.lastModifiedTime().toMillis(),
+                               fileKey != null ? fileKey.toString() : ""));
+    }
+    catch (IOException e) {
+      // a missing dependency is a part of the fingerprint too
+      stamps.add(new FileStamp(path.toString(), -1, -1, ""));
+    }
+  }
+
+  private @NotNull Map<String, Entry> getEntries() {
+    if (myEntries == null) {
+      myEntries = load();
+    }
+    return myEntries;
+  }
+
+  private @NotNull Map<String, Entry> load() {
+    Map<String, Entry> entries = new HashMap<>();
+    if (!Files.exists(myFile)) return entries;
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(myFile))) {
+      if (in.readInt() != FORMAT_VERSION) return entries;
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String key = in.readUTF();
+        GitVersion version = new GitVersion(in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                                            GitVersion.Type.valueOf(in.readUTF()));
+        int stampCount = in.readInt();
+        List<FileStamp> stamps = new ArrayList<>(stampCount);
+        for (int j = 0; j < stampCount; j++) {
+          stamps.add(new FileStamp(in.readUTF(), in.readLong(), in.readLong(), in.readUTF()));
+        }
+        entries.put(key, new Entry(version, stamps));
+      }
+    }
+    catch (IOException | IllegalArgumentException e) {
+      LOG.info("Couldn't read stored executable versions, they will be identified again", e);
+      entries.clear();
+    }
+    return entries;
+  }
+
+  private void save(@NotNull Map<String, Entry> entries) {
+    try {
+      Files.createDirectories(myFile.getParent());
+      Path tempFile = Files.createTempFile(myFile.getParent(), myFile.getFileName().toString(), ".tmp");
+      try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tempFile))) {
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+          GitVersion version = mapEntry.getValue().version;
+          out.writeUTF(mapEntry.getKey());
+          out.writeInt(version.getMajorVersion());
+          out.writeInt(version.getMinorVersion());
+          out.writeInt(version.getRevision());
+          out.writeInt(version.getPatchLevel());
+          out.writeUTF(version.getType().name());
+          out.writeInt(mapEntry.getValue().stamps.size());
+          for (FileStamp stamp : mapEntry.getValue().stamps) {
+            out.writeUTF(stamp.path);
+            out.writeLong(stamp.size);
+            out.writeLong(stamp.modificationTime);
+            out.writeUTF(stamp.fileKey);
+          }
+        }
+      }
+      Files.move(tempFile, myFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (IOException e) {
+      LOG.warn("Couldn't store executable versions to " + myFile, e);
+    }
+  }
+
+  private record Entry(@NotNull GitVersion version, @NotNull List<FileStamp> stamps) {
+  }
+
+  private record FileStamp(@NotNull String path, long size, long modificationTime, @NotNull String fileKey) {
+  }
+}
@@ -0,0 +1,246 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.config;
+
+import com.intellij.openapi.application.AccessToken;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.registry.Registry;
+import git4idea.config.GitExecutable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Application-wide limit of concurrently running processes per executable.
+ * <p>
+ * The budget defaults to the number of cores and is shared between projects round-robin,
+ * so one project refreshing many roots can't take all the slots while another one waits.
+ * A command started by a running one from its callbacks shares the slot of its holder.
+ */
+public final class EncProcessAdmission {
+  private static final Logger LOG = Logger.getInstance(EncProcessAdmission.class);
+
+  private final @NotNull ConcurrentMap<String, Budget> myBudgets = new ConcurrentHashMap<>();
+
+  public static EncProcessAdmission getInstance() {
+    return ApplicationManager.getApplication().getService(EncProcessAdmission.class);
+  }
+
+  /**
+   * Wait until a process for the executable may be started. The returned token must be finished when the process terminates.
+   *
+   * @param holder token returned by this method to the running command which starts this one, if any:
+   *               the new process shares its slot instead of waiting for a slot the holder would release only after it
+   */
+  public @NotNull AccessToken acquire(@Nullable Project project, @NotNull GitExecutable executable, @Nullable AccessToken holder) {
+    Budget budget = myBudgets.computeIfAbsent(getKey(executable), key -> new Budget());
+    if (holder instanceof Slot slot && slot.myBudget == budget && budget.isGranted(slot.myWaiter)) {
+      return new Slot(budget, slot.myWaiter, true);
+    }
+    return new Slot(budget, budget.await(project != null ? project : NO_PROJECT), false);
+  }
+
+  public @NotNull Statistics getStatistics(@NotNull GitExecutable executable) {
+    Budget budget = myBudgets.get(getKey(executable));
+    return budget != null ? budget.getStatistics() : new Statistics(0, 0, 0, 0, 0);
+  }
+
+  private static @NotNull String getKey(@NotNull GitExecutable executable) {
+    return executable.getId() + ":" + executable.getExePath();
+  }
+
+  private static int getLimit() {
+    int limit = Registry.intValue("enc.max.concurrent.processes", 0);
+    return limit > 0 ? limit : Runtime.getRuntime().availableProcessors();
+  }
+
+  private static final Object NO_PROJECT = new Object();
+
+  private static final class Slot extends AccessToken {
+    private final @NotNull Budget myBudget;
+    private final @NotNull Waiter myWaiter;
+    private final boolean myShared;
+
+    private Slot(@NotNull Budget budget, @NotNull Waiter waiter, boolean shared) {
+      myBudget = budget;
+      myWaiter = waiter;
+      myShared = shared;
+    }
+
+    @Override
+    public void finish() {
+      if (!myShared) myBudget.release(myWaiter);
+    }
+  }
+
+  private static class Waiter {
+    private final long myEnqueuedAt = System.nanoTime();
+    private final CompletableFuture<Void> myGrant = new CompletableFuture<>();
+    private boolean myGranted;
+  }
+
+  private static class Budget {
+    private final ReentrantLock myLock = new ReentrantLock();
+    // insertion order of the map is the round-robin order of the projects
+    private final Map<Object, Deque<Waiter>> myQueues = new LinkedHashMap<>();
+    private int myRunning;
+    private int myQueueDepth;
+    private long myAdmitted;
+    private long myTotalWaitNanos;
+    private long myMaxWaitNanos;
+
+    /**
+     * Waiters are woken up by the release which grants them a slot.
+     */
+    @NotNull Waiter await(@NotNull Object owner) {
+      Waiter waiter = new Waiter();
+      myLock.lock();
+      try {
+        myQueues.computeIfAbsent(owner, key -> new ArrayDeque<>()).add(waiter);
+        myQueueDepth++;
+        grant();
+      }
+      finally {
+        myLock.unlock();
+      }
+      try {
+        ProgressIndicatorUtils.awaitWithCheckCanceled(waiter.myGrant);
+        return waiter;
+      }
+      catch (Throwable t) {
+        withdraw(owner, waiter);
+        throw t;
+      }
+    }
+
+    private void withdraw(@NotNull Object owner, @NotNull Waiter waiter) {
+      myLock.lock();
+      try {
+        Deque<Waiter> queue = myQueues.get(owner);
+        if (queue != null && queue.remove(waiter)) {
+          myQueueDepth--;
+          if (queue.isEmpty()) myQueues.remove(owner);
+        }
+        else {
+          release(waiter); // the slot may have been granted meanwhile
+        }
+      }
+      finally {
+        myLock.unlock();
+      }
+    }
+
+    boolean isGranted(@NotNull Waiter waiter) {
+      myLock.lock();
+      try {
+        return waiter.myGranted;
+      }
+      finally {
+        myLock.unlock();
+      }
+    }
+
+    void release(@NotNull Waiter waiter) {
+      myLock.lock();
+      try {
+        if (waiter.myGranted) {
+          waiter.myGranted = false;
+          myRunning--;
+          grant();
+        }
+      }
+      finally {
+        myLock.unlock();
+      }
+    }
+
+    /**
+     * Hand out free slots taking one waiter from each project in turn.
+     */
+    private void grant() {
+      while (myRunning < getLimit() && !myQueues.isEmpty()) {
+        Map.Entry<Object, Deque<Waiter>> first = myQueues.entrySet().iterator().next();
+        Object owner = first.getKey();
+        Deque<Waiter> queue = myQueues.remove(owner);
+        Waiter waiter = queue.poll();
+        if (!queue.isEmpty()) myQueues.put(owner, queue); // move the project to the end of the line
+
+        long waitNanos = System.nanoTime() - waiter.myEnqueuedAt;
+        waiter.myGranted = true;
+        myRunning++;
+        myQueueDepth--;
+        myAdmitted++;
+        myTotalWaitNanos += waitNanos;
+        myMaxWaitNanos = Math.max(myMaxWaitNanos, waitNanos);
+        if (LOG.isDebugEnabled() && waitNanos > TimeUnit.SECONDS.toNanos(1)) {
+          LOG.debug("Process admitted after " + TimeUnit.NANOSECONDS.toMillis(waitNanos) + " ms, " + myQueueDepth + " still waiting");
+        }
+        waiter.myGrant.complete(null);
+      }
+    }
+
+    @NotNull Statistics getStatistics() {
+      myLock.lock();
+      try {
+        return new Statistics(myRunning, myQueueDepth, myAdmitted,
+                              TimeUnit.NANOSECONDS.toMillis(myTotalWaitNanos), TimeUnit.NANOSECONDS.toMillis(myMaxWaitNanos));
+      }
+      finally {
+        myLock.unlock();
+      }
+    }
+  }
+
+  public static class Statistics {
+    private final int myRunning;
+    private final int myQueueDepth;
+    private final long myAdmitted;
+    private final long myTotalWaitMs;
+    private final long myMaxWaitMs;
+
+    Statistics(int running, int queueDepth, long admitted, long totalWaitMs, long maxWaitMs) {
+      myRunning = running;
+      myQueueDepth = queueDepth;
+      myAdmitted = admitted;
+      myTotalWaitMs = totalWaitMs;
+      myMaxWaitMs = maxWaitMs;
+    }
+
+    public int getRunning() {
+      return myRunning;
+    }
+
+    public int getQueueDepth() {
+      return myQueueDepth;
+    }
+
+    public long getAdmitted() {
+      return myAdmitted;
+    }
+
+    public long getAverageWaitMs() {
+      return myAdmitted == 0 ? 0 : myTotalWaitMs / myAdmitted;
+    }
+
+    public long getMaxWaitMs() {
+      return myMaxWaitMs;
+    }
+
+    @Override
+    public String toString() {
+      return "running=" + myRunning + ", queued=" + myQueueDepth + ", admitted=" + myAdmitted +
+             ", avgWait=" + getAverageWaitMs() + "ms, maxWait=" + myMaxWaitMs + "ms";
+    }
+  }
+}
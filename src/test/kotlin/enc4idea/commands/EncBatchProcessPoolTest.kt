@@ -0,0 +1,89 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.intellij.execution.configurations.GeneralCommandLine
+import com.intellij.openapi.util.SystemInfo
+import com.intellij.testFramework.fixtures.BasePlatformTestCase
+import enc4idea.commands.EncBatchProcessPool.BatchProcess
+import java.io.IOException
+
+class EncBatchProcessPoolTest : BasePlatformTestCase() {
+    private var myProcess: BatchProcess? = null
+
+    override fun tearDown() {
+        try {
+            myProcess?.destroy()
+        } finally {
+            super.tearDown()
+        }
+    }
+
+    fun testCheck() {
+        val process = startProcess() ?: return
+        assertEquals("$OID commit 200", process.check("commit"))
+        assertEquals(OID, process.resolve("commit"))
+    }
+
+    fun testMissingAndAmbiguousNamesAreMisses() {
+        val process = startProcess() ?: return
+        assertNull(process.check("missing"))
+        assertNull(process.check("ambiguous"))
+        assertNull(process.resolve("ambiguous"))
+        assertEquals(OID, process.resolve("commit"))
+    }
+
+    fun testUnexpectedResponseIsMiss() {
+        val process = startProcess() ?: return
+        assertNull(process.check("unexpected"))
+        assertNull(process.read("unexpected"))
+        assertEquals(OID, process.resolve("commit"))
+    }
+
+    fun testSymlinkFailureIsSkipped() {
+        val process = startProcess() ?: return
+        assertNull(process.check("dangling"))
+        assertEquals(OID, process.resolve("commit"))
+    }
+
+    fun testRead() {
+        val process = startProcess() ?: return
+        assertEquals("hello", String(process.read("blob")!!))
+        assertNull(process.read("missing"))
+        assertEquals("hello", String(process.read("blob")!!))
+    }
+
+    fun testLineBreakInNameIsRejected() {
+        val process = startProcess() ?: return
+        assertThrows(IOException::class.java) { process.check("commit\nblob") }
+        assertEquals(OID, process.resolve("commit"))
+    }
+
+    fun testTerminatedProcess() {
+        val process = startProcess() ?: return
+        process.destroy()
+        assertThrows(IOException::class.java) { process.check("commit") }
+    }
+
+    /**
+     * Starts a script which answers like `cat-file --batch` does for a few fixed names, null on Windows
+     */
+    private fun startProcess(): BatchProcess? {
+        if (SystemInfo.isWindows) return null
+        val script = """
+            while IFS= read -r name; do
+              case "${'$'}name" in
+                commit) printf '%s commit 200\n' $OID ;;
+                blob) printf '%s blob 5\nhello\n' $OID ;;
+                missing|ambiguous) printf '%s %s\n' "${'$'}name" "${'$'}name" ;;
+                dangling) printf 'dangling 8\ndangling\n' ;;
+                *) printf 'error: unexpected %s\n' "${'$'}name" ;;
+              esac
+            done
+        """.trimIndent()
+        return BatchProcess(GeneralCommandLine("sh", "-c", script)).also { myProcess = it }
+    }
+
+    companion object {
+        private const val OID = "0123456789abcdef0123456789abcdef01234567"
+    }
+}
@@ -0,0 +1,47 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.intellij.testFramework.fixtures.BasePlatformTestCase
+import com.intellij.vcsUtil.VcsFileUtil
+
+class EncChunkedExecutorTest : BasePlatformTestCase() {
+
+    fun testNoPaths() {
+        assertEmpty(EncChunkedExecutor.chunk(emptyList(), BASE_LENGTH))
+    }
+
+    fun testEmptyPathsDoNotRunCommand() {
+        val result = EncChunkedExecutor.run<EncHandler>(emptyList(),
+                { throw AssertionError("no handler should be created") },
+                { throw AssertionError("no command should be executed") })
+        assertTrue(result.success)
+        assertEmpty(result.output)
+        assertEmpty(result.errorOutput)
+    }
+
+    fun testPathsWithinLimitFormOneChunk() {
+        val paths = listOf("a.txt", "dir/b.txt", "dir/sub/c.txt")
+        assertEquals(listOf(paths), EncChunkedExecutor.chunk(paths, BASE_LENGTH))
+    }
+
+    fun testOversizedPathGetsOwnChunk() {
+        val oversized = "d/".repeat(VcsFileUtil.FILE_PATH_LIMIT)
+        assertEquals(listOf(listOf(oversized)), EncChunkedExecutor.chunk(listOf(oversized), BASE_LENGTH))
+        assertEquals(listOf(listOf("a.txt"), listOf(oversized), listOf("b.txt")),
+                     EncChunkedExecutor.chunk(listOf("a.txt", oversized, "b.txt"), BASE_LENGTH))
+    }
+
+    fun testChunksStayWithinLimit() {
+        val paths = (1..5000).map { "directory/subdirectory/file$it.txt" }
+        val chunks = EncChunkedExecutor.chunk(paths, BASE_LENGTH)
+        assertTrue(chunks.size > 1)
+        assertEquals(paths, chunks.flatten())
+        for (chunk in chunks) {
+            assertTrue(BASE_LENGTH + chunk.sumOf { it.length + 1 } <= VcsFileUtil.FILE_PATH_LIMIT)
+        }
+    }
+
+    companion object {
+        private const val BASE_LENGTH = 100
+    }
+}
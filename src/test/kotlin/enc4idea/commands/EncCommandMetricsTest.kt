@@ -0,0 +1,64 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.intellij.testFramework.fixtures.BasePlatformTestCase
+import enc4idea.commands.EncCommandMetrics.Histogram
+import java.util.concurrent.TimeUnit
+
+class EncCommandMetricsTest : BasePlatformTestCase() {
+
+    fun testBucketContainsValue() {
+        for (micros in sampleValues()) {
+            val index = Histogram.bucketIndex(micros)
+            assertTrue("index of $micros", index in 0 until Histogram.BUCKET_COUNT)
+            assertTrue("upper bound of $micros", Histogram.bucketUpperBound(index) >= micros)
+            if (index > 0) {
+                assertTrue("upper bound of the bucket before $micros", Histogram.bucketUpperBound(index - 1) < micros)
+            }
+        }
+    }
+
+    fun testUpperBoundsGrow() {
+        val lastIndex = Histogram.bucketIndex(Long.MAX_VALUE)
+        assertEquals(Long.MAX_VALUE, Histogram.bucketUpperBound(lastIndex))
+        for (index in 1..lastIndex) {
+            assertTrue("bucket $index", Histogram.bucketUpperBound(index) > Histogram.bucketUpperBound(index - 1))
+        }
+    }
+
+    fun testPrecision() {
+        for (micros in sampleValues().filter { it > 0 }) {
+            val error = Histogram.bucketUpperBound(Histogram.bucketIndex(micros)) - micros
+            assertTrue("error for $micros is $error", error.toDouble() / micros <= 0.25)
+        }
+    }
+
+    fun testSummary() {
+        val histogram = Histogram()
+        for (ms in 1L..100L) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(ms))
+        }
+        val summary = histogram.summary()
+        assertEquals(100L, summary.count)
+        assertEquals(100.0, summary.maxMs, 0.0)
+        assertTrue("p50 is ${summary.p50Ms}", summary.p50Ms in 50.0..62.5)
+        assertTrue("p90 is ${summary.p90Ms}", summary.p90Ms in 90.0..112.5)
+        assertTrue("p99 is ${summary.p99Ms}", summary.p99Ms in 99.0..123.75)
+    }
+
+    fun testEmptySummary() {
+        val summary = Histogram().summary()
+        assertEquals(0L, summary.count)
+        assertEquals(0.0, summary.p99Ms, 0.0)
+    }
+
+    private fun sampleValues(): List<Long> {
+        val values = (0L..10000L).toMutableList()
+        for (bit in 14..62) {
+            val power = 1L shl bit
+            values.addAll(listOf(power - 1, power, power + 1, power + power / 3))
+        }
+        values.add(Long.MAX_VALUE)
+        return values
+    }
+}
@@ -0,0 +1,162 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.intellij.openapi.progress.EmptyProgressIndicator
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.testFramework.fixtures.BasePlatformTestCase
+import enc4idea.commands.EncCommandScheduler.RootGate
+import enc4idea.commands.EncCommandScheduler.Ticket
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+
+class EncCommandSchedulerTest : BasePlatformTestCase() {
+    private val myGate = RootGate("/repo")
+    private var mySequence = 0L
+    private val myThreads = mutableListOf<Thread>()
+
+    override fun tearDown() {
+        try {
+            myThreads.forEach { it.join(TIMEOUT_MS) }
+        } finally {
+            super.tearDown()
+        }
+    }
+
+    fun testReadsRunConcurrently() {
+        val first = acquire(isWrite = false)
+        val second = startWaiting(isWrite = false).get(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+        myGate.release(second)
+        myGate.release(first)
+    }
+
+    fun testUserInitiatedCommandGoesFirst() {
+        val holder = acquire(isWrite = true)
+        val background = startWaiting(isWrite = true)
+        awaitWaiting(1)
+        val userInitiated = startWaiting(isWrite = true, isUserInitiated = true)
+        awaitWaiting(2)
+
+        myGate.release(holder)
+        val admitted = userInitiated.get(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+        assertFalse(background.isDone)
+        myGate.release(admitted)
+        myGate.release(background.get(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+    }
+
+    fun testReadDoesNotOvertakeWaitingWrite() {
+        val read = acquire(isWrite = false)
+        val write = startWaiting(isWrite = true)
+        awaitWaiting(1)
+        val laterRead = startWaiting(isWrite = false)
+        awaitWaiting(2)
+        assertFalse(laterRead.isDone)
+
+        myGate.release(read)
+        val admittedWrite = write.get(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+        assertFalse(laterRead.isDone)
+        myGate.release(admittedWrite)
+        myGate.release(laterRead.get(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+    }
+
+    fun testNestedCommandOfWriteHolderIsAdmitted() {
+        val write = acquire(isWrite = true)
+        val nestedRead = acquire(isWrite = false, holder = write)
+        val nestedWrite = acquire(isWrite = true, holder = nestedRead)
+        myGate.release(nestedWrite)
+        myGate.release(nestedRead)
+
+        val other = startWaiting(isWrite = false)
+        awaitWaiting(1)
+        myGate.release(write)
+        myGate.release(other.get(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+    }
+
+    fun testWriteUnderReadHolderFails() {
+        val read = acquire(isWrite = false)
+        assertThrows(IllegalStateException::class.java) { acquire(isWrite = true, holder = read) }
+        myGate.release(read)
+
+        val write = startWaiting(isWrite = true).get(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+        myGate.release(write)
+    }
+
+    fun testReleasedHolderIsNotShared() {
+        val write = acquire(isWrite = true)
+        myGate.release(write)
+        val read = acquire(isWrite = false, holder = write)
+        assertFalse(read.isNested)
+
+        val otherWrite = startWaiting(isWrite = true)
+        awaitWaiting(1)
+        myGate.release(read)
+        myGate.release(otherWrite.get(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+    }
+
+    fun testPermitIsNotBoundToThread() {
+        // a permit taken on a pooled thread and released from a callback on another one
+        val write = startWaiting(isWrite = true).get(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+        val read = startWaiting(isWrite = false)
+        awaitWaiting(1)
+        myGate.release(write)
+        myGate.release(read.get(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+    }
+
+    fun testCancelledWaitingWriteDoesNotBlockReads() {
+        val read = acquire(isWrite = false)
+        val indicator = EmptyProgressIndicator()
+        val write = startWaiting(isWrite = true, indicator = indicator)
+        awaitWaiting(1)
+        val laterRead = startWaiting(isWrite = false)
+        awaitWaiting(2)
+
+        indicator.cancel()
+        val error = assertThrows(ExecutionException::class.java) { write.get(TIMEOUT_MS, TimeUnit.MILLISECONDS) }
+        assertInstanceOf(error.cause, ProcessCanceledException::class.java)
+        myGate.release(laterRead.get(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+        myGate.release(read)
+        assertEquals(0, myGate.waitingCount)
+    }
+
+    private fun acquire(isWrite: Boolean, isUserInitiated: Boolean = false, holder: Ticket? = null): Ticket {
+        val ticket = Ticket(isWrite, isUserInitiated, ++mySequence)
+        myGate.await(ticket, holder)
+        return ticket
+    }
+
+    /**
+     * @return future completed with the ticket when it's admitted on another thread
+     */
+    private fun startWaiting(isWrite: Boolean,
+                             isUserInitiated: Boolean = false,
+                             indicator: ProgressIndicator = EmptyProgressIndicator()): CompletableFuture<Ticket> {
+        val future = CompletableFuture<Ticket>()
+        val sequence = ++mySequence
+        val thread = Thread {
+            try {
+                val ticket = Ticket(isWrite, isUserInitiated, sequence)
+                ProgressManager.getInstance().runProcess(Runnable { myGate.await(ticket, null) }, indicator)
+                future.complete(ticket)
+            } catch (t: Throwable) {
+                future.completeExceptionally(t)
+            }
+        }
+        myThreads.add(thread)
+        thread.start()
+        return future
+    }
+
+    private fun awaitWaiting(count: Int) {
+        val deadline = System.currentTimeMillis() + TIMEOUT_MS
+        while (myGate.waitingCount < count) {
+            assertTrue("$count tickets should be waiting", System.currentTimeMillis() < deadline)
+            Thread.sleep(10)
+        }
+    }
+
+    companion object {
+        private const val TIMEOUT_MS = 10_000L
+    }
+}
@@ -0,0 +1,75 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.intellij.testFramework.fixtures.BasePlatformTestCase
+import java.nio.ByteBuffer
+import java.nio.charset.Charset
+import java.nio.charset.StandardCharsets
+
+class EncLineDecoderTest : BasePlatformTestCase() {
+
+    fun testMultibyteCharactersSplitBetweenChunks() {
+        val bytes = "héllo wörld €𝄞\nnext ünïcode\n".toByteArray(StandardCharsets.UTF_8)
+        val expected = listOf("héllo wörld €𝄞", "next ünïcode")
+        for (chunkSize in 1..8) {
+            assertEquals("chunk size $chunkSize", expected, decode(bytes, StandardCharsets.UTF_8, chunkSize))
+        }
+        for (split in bytes.indices) {
+            assertEquals("split at $split", expected, decode(bytes, StandardCharsets.UTF_8, listOf(split)))
+        }
+    }
+
+    fun testCrLf() {
+        val bytes = "first\r\nsecond\r\n\r\nlast\r".toByteArray(StandardCharsets.UTF_8)
+        for (chunkSize in 1..4) {
+            assertEquals(listOf("first", "second", "", "last"), decode(bytes, StandardCharsets.UTF_8, chunkSize))
+        }
+    }
+
+    fun testNonAsciiCompatibleCharset() {
+        // U+010A is encoded as 0A 01 in UTF-16LE: its low byte must not be taken for a newline
+        val bytes = "перваяĊ\nsecond\r\nlast".toByteArray(StandardCharsets.UTF_16LE)
+        for (chunkSize in 1..5) {
+            assertEquals(listOf("перваяĊ", "second", "last"), decode(bytes, StandardCharsets.UTF_16LE, chunkSize))
+        }
+    }
+
+    fun testDecoderIsResetAfterNewline() {
+        // an incomplete character at the end of a line is replaced and doesn't swallow the next line
+        val bytes = byteArrayOf(0xC3.toByte()) + "\nplain\nü\nabc\n".toByteArray(StandardCharsets.UTF_8)
+        for (chunkSize in 1..3) {
+            assertEquals(listOf("\uFFFD", "plain", "ü", "abc"), decode(bytes, StandardCharsets.UTF_8, chunkSize))
+        }
+    }
+
+    fun testStreamsAreDecodedSeparately() {
+        val lines = mutableListOf<String>()
+        val decoder = EncLineDecoder(StandardCharsets.UTF_8) { line, isStderr -> lines.add((if (isStderr) "err: " else "out: ") + line) }
+        decoder.onOutput(ByteBuffer.wrap("wö".toByteArray(StandardCharsets.UTF_8), 0, 2), false)
+        decoder.onOutput(ByteBuffer.wrap("error\n".toByteArray(StandardCharsets.UTF_8)), true)
+        decoder.onOutput(ByteBuffer.wrap("wö".toByteArray(StandardCharsets.UTF_8), 2, 1), false)
+        decoder.onOutput(ByteBuffer.wrap("rd\n".toByteArray(StandardCharsets.UTF_8)), false)
+        decoder.onOutputEnd(true)
+        decoder.onOutputEnd(false)
+        assertEquals(listOf("err: error", "out: wörd"), lines)
+    }
+
+    private fun decode(bytes: ByteArray, charset: Charset, chunkSize: Int): List<String> {
+        return decode(bytes, charset, (chunkSize until bytes.size step chunkSize).toList())
+    }
+
+    /**
+     * @param splits offsets at which the output is split into chunks
+     */
+    private fun decode(bytes: ByteArray, charset: Charset, splits: List<Int>): List<String> {
+        val lines = mutableListOf<String>()
+        val decoder = EncLineDecoder(charset) { line, _ -> lines.add(line.toString()) }
+        var offset = 0
+        for (end in splits + bytes.size) {
+            decoder.onOutput(ByteBuffer.wrap(bytes, offset, end - offset), false)
+            offset = end
+        }
+        decoder.onOutputEnd(false)
+        return lines
+    }
+}
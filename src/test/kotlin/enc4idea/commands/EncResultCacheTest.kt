@@ -0,0 +1,105 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.intellij.openapi.util.io.FileUtil
+import com.intellij.testFramework.fixtures.BasePlatformTestCase
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+
+class EncResultCacheTest : BasePlatformTestCase() {
+    private lateinit var myDirectory: Path
+    private lateinit var myGitDir: Path
+    private lateinit var myCache: EncResultCache
+
+    override fun setUp() {
+        super.setUp()
+        myDirectory = Files.createTempDirectory("enc-result-cache")
+        myGitDir = Files.createDirectories(myDirectory.resolve(".git"))
+        write("HEAD", "ref: refs/heads/main\n")
+        write("refs/heads/main", "$FIRST\n")
+        write("index", "index")
+        myCache = EncResultCache(project)
+    }
+
+    override fun tearDown() {
+        try {
+            myCache.dispose()
+            FileUtil.delete(myDirectory)
+        } finally {
+            super.tearDown()
+        }
+    }
+
+    fun testUnchangedRepository() {
+        val fingerprint = fingerprint()
+        assertNotNull(fingerprint)
+        assertEquals(fingerprint, fingerprint())
+        assertEquals(fingerprint, myCache.fingerprint(Files.createDirectories(myDirectory.resolve("sub/dir")).toFile()))
+    }
+
+    fun testCommitOnCurrentBranch() {
+        val fingerprint = fingerprint()
+        write("refs/heads/main", "$SECOND\n")
+        assertFalse(fingerprint == fingerprint())
+    }
+
+    fun testCheckout() {
+        write("refs/heads/other", "$FIRST\n")
+        val fingerprint = fingerprint()
+        write("HEAD", "ref: refs/heads/other\n")
+        assertFalse(fingerprint == fingerprint())
+    }
+
+    fun testStaging() {
+        val fingerprint = fingerprint()
+        write("index", "other")
+        assertFalse(fingerprint == fingerprint())
+    }
+
+    fun testPackedRefs() {
+        val fingerprint = fingerprint()
+        write("packed-refs", "$SECOND refs/tags/v1\n")
+        assertFalse(fingerprint == fingerprint())
+    }
+
+    fun testDetachedHead() {
+        write("HEAD", "$FIRST\n")
+        val fingerprint = fingerprint()
+        write("HEAD", "$SECOND\n")
+        assertFalse(fingerprint == fingerprint())
+    }
+
+    fun testOtherLooseRefsAreNotRead() {
+        val fingerprint = fingerprint()
+        write("refs/heads/feature/x", "$SECOND\n")
+        assertEquals(fingerprint, fingerprint())
+    }
+
+    fun testOutsideOfRepository() {
+        val directory = Files.createTempDirectory("enc-no-repository")
+        try {
+            assertNull(myCache.fingerprint(directory.toFile()))
+        } finally {
+            FileUtil.delete(directory)
+        }
+    }
+
+    private fun fingerprint(): String? = myCache.fingerprint(myDirectory.toFile())
+
+    /**
+     * Write the file through a lock file and a rename, as enc does
+     */
+    private fun write(relativePath: String, content: String) {
+        val file = myGitDir.resolve(relativePath)
+        Files.createDirectories(file.parent)
+        val lock = file.resolveSibling(file.fileName.toString() + ".lock")
+        Files.writeString(lock, content)
+        Files.move(lock, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    }
+
+    companion object {
+        private const val FIRST = "0123456789abcdef0123456789abcdef01234567"
+        private const val SECOND = "89abcdef0123456789abcdef0123456789abcdef"
+    }
+}
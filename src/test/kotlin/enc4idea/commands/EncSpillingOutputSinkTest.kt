@@ -0,0 +1,89 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.commands
+
+import com.intellij.testFramework.fixtures.BasePlatformTestCase
+import java.nio.ByteBuffer
+
+class EncSpillingOutputSinkTest : BasePlatformTestCase() {
+
+    fun testOutputWithinMemoryWindow() {
+        val output = bytes(16)
+        EncSpillingOutputSink(16, 1024).use { sink ->
+            write(sink, output, 5)
+            assertEquals(16L, sink.size)
+            assertEquals(output.toList(), readBack(sink).toList())
+        }
+    }
+
+    fun testOutputSpilledAfterMemoryWindow() {
+        for (length in listOf(17, 100)) {
+            val output = bytes(length)
+            EncSpillingOutputSink(16, 1024).use { sink ->
+                write(sink, output, 5)
+                assertEquals(length.toLong(), sink.size)
+                assertFalse(sink.isTruncated)
+                assertEquals(output.toList(), readBack(sink).toList())
+            }
+        }
+    }
+
+    fun testSpilledOutputCrossesSegmentBoundary() {
+        val output = bytes(SEGMENT_SIZE + 2048 + 100)
+        EncSpillingOutputSink(1024, Long.MAX_VALUE).use { sink ->
+            write(sink, output, 65536)
+            assertTrue(output.contentEquals(readBack(sink)))
+        }
+    }
+
+    fun testOutputTruncatedAtLimit() {
+        var exceeded = 0
+        val output = bytes(40)
+        EncSpillingOutputSink(8, 20) { exceeded++ }.use { sink ->
+            write(sink, output.copyOfRange(0, 15), 15)
+            assertFalse(sink.isTruncated)
+            write(sink, output.copyOfRange(15, 40), 10)
+            assertTrue(sink.isTruncated)
+            assertEquals(1, exceeded)
+            assertEquals(20L, sink.size)
+            assertEquals(output.copyOfRange(0, 20).toList(), readBack(sink).toList())
+        }
+    }
+
+    fun testOutputOfLimitSizeIsNotTruncated() {
+        EncSpillingOutputSink(8, 20) { fail("limit is not exceeded") }.use { sink ->
+            write(sink, bytes(20), 7)
+            assertFalse(sink.isTruncated)
+            assertEquals(20L, sink.size)
+        }
+    }
+
+    fun testErrorOutputCappedByMemoryWindow() {
+        val error = bytes(30)
+        EncSpillingOutputSink(16, 1024).use { sink ->
+            sink.onOutput(ByteBuffer.wrap(error, 0, 16), true)
+            assertFalse(sink.isErrorTruncated)
+            sink.onOutput(ByteBuffer.wrap(error, 16, 14), true)
+            assertTrue(sink.isErrorTruncated)
+            assertEquals(error.copyOfRange(0, 16).toList(), sink.getErrorOutput().toList())
+            assertEquals(0L, sink.size)
+            assertFalse(sink.isTruncated)
+        }
+    }
+
+    private fun bytes(length: Int): ByteArray = ByteArray(length) { (it * 31 + it / 251).toByte() }
+
+    private fun write(sink: EncSpillingOutputSink, output: ByteArray, chunkSize: Int) {
+        var offset = 0
+        while (offset < output.size) {
+            val length = minOf(chunkSize, output.size - offset)
+            sink.onOutput(ByteBuffer.wrap(output, offset, length), false)
+            offset += length
+        }
+    }
+
+    private fun readBack(sink: EncSpillingOutputSink): ByteArray = sink.openStream().use { it.readBytes() }
+
+    companion object {
+        private const val SEGMENT_SIZE = 16 * 1024 * 1024
+    }
+}
@@ -0,0 +1,100 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.config
+
+import com.intellij.openapi.util.io.FileUtil
+import com.intellij.testFramework.fixtures.BasePlatformTestCase
+import git4idea.config.GitExecutable
+import git4idea.config.GitVersion
+import java.io.DataOutputStream
+import java.nio.file.Files
+import java.nio.file.Path
+
+class EncExecutableVersionStoreTest : BasePlatformTestCase() {
+    private lateinit var myDirectory: Path
+    private lateinit var myStoreFile: Path
+    private lateinit var myExecutablePath: Path
+    private lateinit var myDependencyPath: Path
+    private lateinit var myExecutable: GitExecutable
+
+    private val myVersion = GitVersion(2, 40, 1, 0, GitVersion.Type.UNIX)
+
+    override fun setUp() {
+        super.setUp()
+        myDirectory = Files.createTempDirectory("enc-version-store")
+        myStoreFile = myDirectory.resolve("store").resolve("executable-versions.dat")
+        myExecutablePath = Files.writeString(myDirectory.resolve("enc"), "executable")
+        myDependencyPath = Files.writeString(myDirectory.resolve("libenc.so"), "library")
+        myExecutable = GitExecutable.Local(myExecutablePath.toString())
+    }
+
+    override fun tearDown() {
+        try {
+            FileUtil.delete(myDirectory)
+        } finally {
+            super.tearDown()
+        }
+    }
+
+    fun testRoundTrip() {
+        EncExecutableVersionStore(myStoreFile).put(myExecutable, myExecutablePath, listOf(myDependencyPath), myVersion)
+
+        val version = EncExecutableVersionStore(myStoreFile).get(myExecutable, myExecutablePath, listOf(myDependencyPath))
+        assertEquals(myVersion, version)
+        assertEquals(GitVersion.Type.UNIX, version!!.type)
+    }
+
+    fun testChangedExecutableIsIdentifiedAgain() {
+        EncExecutableVersionStore(myStoreFile).put(myExecutable, myExecutablePath, listOf(myDependencyPath), myVersion)
+        Files.writeString(myExecutablePath, "updated executable")
+
+        assertNull(EncExecutableVersionStore(myStoreFile).get(myExecutable, myExecutablePath, listOf(myDependencyPath)))
+    }
+
+    fun testChangedDependencyIsIdentifiedAgain() {
+        EncExecutableVersionStore(myStoreFile).put(myExecutable, myExecutablePath, listOf(myDependencyPath), myVersion)
+        Files.delete(myDependencyPath)
+
+        assertNull(EncExecutableVersionStore(myStoreFile).get(myExecutable, myExecutablePath, listOf(myDependencyPath)))
+    }
+
+    fun testOtherExecutableIsNotMatched() {
+        val store = EncExecutableVersionStore(myStoreFile)
+        store.put(myExecutable, myExecutablePath, emptyList(), myVersion)
+
+        val other = GitExecutable.Local(myDirectory.resolve("other").toString())
+        assertNull(store.get(other, myExecutablePath, emptyList()))
+    }
+
+    fun testUnknownFormatIsIgnored() {
+        Files.createDirectories(myStoreFile.parent)
+        DataOutputStream(Files.newOutputStream(myStoreFile)).use {
+            it.writeInt(Int.MAX_VALUE)
+            it.writeInt(1)
+        }
+        val store = EncExecutableVersionStore(myStoreFile)
+        assertNull(store.get(myExecutable, myExecutablePath, emptyList()))
+
+        store.put(myExecutable, myExecutablePath, emptyList(), myVersion)
+        assertEquals(myVersion, EncExecutableVersionStore(myStoreFile).get(myExecutable, myExecutablePath, emptyList()))
+    }
+
+    fun testTruncatedFileIsIgnored() {
+        EncExecutableVersionStore(myStoreFile).put(myExecutable, myExecutablePath, emptyList(), myVersion)
+        val content = Files.readAllBytes(myStoreFile)
+        Files.write(myStoreFile, content.copyOf(content.size - 3))
+
+        assertNull(EncExecutableVersionStore(myStoreFile).get(myExecutable, myExecutablePath, emptyList()))
+    }
+
+    fun testRemoveAndClear() {
+        val store = EncExecutableVersionStore(myStoreFile)
+        store.put(myExecutable, myExecutablePath, emptyList(), myVersion)
+        store.remove(myExecutable)
+        assertNull(EncExecutableVersionStore(myStoreFile).get(myExecutable, myExecutablePath, emptyList()))
+
+        store.put(myExecutable, myExecutablePath, emptyList(), myVersion)
+        store.clear()
+        assertNull(store.get(myExecutable, myExecutablePath, emptyList()))
+        assertFalse(Files.exists(myStoreFile))
+    }
+}
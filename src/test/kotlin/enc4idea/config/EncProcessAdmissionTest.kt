@@ -0,0 +1,101 @@
+// Copyright 2000-2023 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
+package enc4idea.config
+
+import com.intellij.openapi.application.AccessToken
+import com.intellij.openapi.progress.EmptyProgressIndicator
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.util.Computable
+import com.intellij.openapi.util.registry.Registry
+import com.intellij.testFramework.fixtures.BasePlatformTestCase
+import git4idea.config.GitExecutable
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+
+class EncProcessAdmissionTest : BasePlatformTestCase() {
+    private val myAdmission = EncProcessAdmission()
+    private val myExecutable = GitExecutable.Local("/usr/bin/enc")
+    private val myThreads = mutableListOf<Thread>()
+
+    override fun setUp() {
+        super.setUp()
+        Registry.get("enc.max.concurrent.processes").setValue(1, testRootDisposable)
+    }
+
+    override fun tearDown() {
+        try {
+            myThreads.forEach { it.join(TIMEOUT_MS) }
+        } finally {
+            super.tearDown()
+        }
+    }
+
+    fun testNestedCommandSharesSlotOfHolder() {
+        val holder = myAdmission.acquire(null, myExecutable, null)
+        val nested = myAdmission.acquire(null, myExecutable, holder)
+        val nestedOfNested = myAdmission.acquire(null, myExecutable, nested)
+        nestedOfNested.finish()
+        nested.finish()
+        assertEquals(1, myAdmission.getStatistics(myExecutable).running)
+
+        val other = startWaiting()
+        awaitQueued(1)
+        holder.finish()
+        other.get(TIMEOUT_MS, TimeUnit.MILLISECONDS).finish()
+        assertEquals(0, myAdmission.getStatistics(myExecutable).running)
+    }
+
+    fun testReleasedHolderIsNotShared() {
+        val holder = myAdmission.acquire(null, myExecutable, null)
+        holder.finish()
+        val next = myAdmission.acquire(null, myExecutable, holder)
+        assertEquals(1, myAdmission.getStatistics(myExecutable).running)
+        next.finish()
+        assertEquals(0, myAdmission.getStatistics(myExecutable).running)
+    }
+
+    fun testCancelledWaiterLeavesQueue() {
+        val holder = myAdmission.acquire(null, myExecutable, null)
+        val indicator = EmptyProgressIndicator()
+        val waiting = startWaiting(indicator)
+        awaitQueued(1)
+
+        indicator.cancel()
+        val error = assertThrows(ExecutionException::class.java) { waiting.get(TIMEOUT_MS, TimeUnit.MILLISECONDS) }
+        assertInstanceOf(error.cause, ProcessCanceledException::class.java)
+        assertEquals(0, myAdmission.getStatistics(myExecutable).queueDepth)
+        holder.finish()
+        assertEquals(0, myAdmission.getStatistics(myExecutable).running)
+    }
+
+    /**
+     * @return future completed with the token when the slot is granted on another thread
+     */
+    private fun startWaiting(indicator: ProgressIndicator = EmptyProgressIndicator()): CompletableFuture<AccessToken> {
+        val future = CompletableFuture<AccessToken>()
+        val thread = Thread {
+            try {
+                future.complete(ProgressManager.getInstance().runProcess(Computable { myAdmission.acquire(null, myExecutable, null) }, indicator))
+            } catch (t: Throwable) {
+                future.completeExceptionally(t)
+            }
+        }
+        myThreads.add(thread)
+        thread.start()
+        return future
+    }
+
+    private fun awaitQueued(count: Int) {
+        val deadline = System.currentTimeMillis() + TIMEOUT_MS
+        while (myAdmission.getStatistics(myExecutable).queueDepth < count) {
+            assertTrue("$count commands should be queued", System.currentTimeMillis() < deadline)
+            Thread.sleep(10)
+        }
+    }
+
+    companion object {
+        private const val TIMEOUT_MS = 10_000L
+    }
+}